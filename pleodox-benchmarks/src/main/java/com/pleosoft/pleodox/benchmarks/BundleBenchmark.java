@@ -0,0 +1,147 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import com.pleosoft.pleodox.boot.service.NoopDocumentGenerationHandler;
+import com.pleosoft.pleodox.boot.service.TemplatesService;
+import com.pleosoft.pleodox.boot.storage.DefaultStorageService;
+
+/**
+ * Bundling the documents of a multi-template request into a zip or a merged
+ * PDF. mergePdf deletes its sources, they are copied again before every call
+ * which is left out of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BundleBenchmark {
+
+	@Param({ "4", "32" })
+	public int documents;
+
+	@Param({ "2", "20" })
+	public int pages;
+
+	private Path root;
+	private TemplatesService templatesService;
+	private List<File> docxFiles;
+	private List<Path> pdfSources;
+	private List<File> pdfFiles;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = Files.createTempDirectory("pleodox-benchmark");
+		final DefaultStorageService storageService = new DefaultStorageService(root.resolve("temporary"),
+				root.resolve("templates"));
+		Files.createDirectories(storageService.resolveTemporary("bundle"));
+
+		templatesService = new TemplatesService(null, storageService, null, new NoopDocumentGenerationHandler(),
+				Collections.emptyList());
+
+		final Path sources = Files.createDirectories(root.resolve("sources"));
+		docxFiles = new ArrayList<>(documents);
+		pdfSources = new ArrayList<>(documents);
+		for (int i = 0; i < documents; i++) {
+			final Path docx = sources.resolve("document" + i + ".docx");
+			Files.write(docx, SyntheticTemplates.template(50, 4, 3, 128));
+			docxFiles.add(docx.toFile());
+
+			final Path pdf = sources.resolve("document" + i + ".pdf");
+			writePdf(pdf, i);
+			pdfSources.add(pdf);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void copyPdfSources() throws Exception {
+		final Path copies = Files.createDirectories(root.resolve("merge"));
+		pdfFiles = new ArrayList<>(documents);
+		for (Path pdf : pdfSources) {
+			pdfFiles.add(Files.copy(pdf, copies.resolve(pdf.getFileName()), StandardCopyOption.REPLACE_EXISTING)
+					.toFile());
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		FileSystemUtils.deleteRecursively(root);
+	}
+
+	@Benchmark
+	public Path buildZip() throws Exception {
+		return templatesService.buildZip("bundle", docxFiles);
+	}
+
+	@Benchmark
+	public void buildZipToStream() throws Exception {
+		templatesService.buildZip(docxFiles, OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public Path mergePdf() throws Exception {
+		return templatesService.mergePdf("bundle", pdfFiles, "merged");
+	}
+
+	private void writePdf(Path pdf, int document) throws Exception {
+		try (PDDocument doc = new PDDocument()) {
+			for (int p = 0; p < pages; p++) {
+				final PDPage page = new PDPage();
+				doc.addPage(page);
+				try (PDPageContentStream content = new PDPageContentStream(doc, page)) {
+					content.beginText();
+					content.setFont(PDType1Font.HELVETICA, 12);
+					content.newLineAtOffset(72, 720);
+					content.showText("Document " + document + ", page " + p);
+					content.endText();
+				}
+			}
+			doc.save(pdf.toFile());
+		}
+	}
+}
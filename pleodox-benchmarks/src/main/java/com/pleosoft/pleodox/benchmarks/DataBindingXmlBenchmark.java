@@ -0,0 +1,99 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.service.DocumentGenerateService;
+
+/**
+ * The data binding xml written by {@link DocumentGenerateService} against the
+ * former string building on top of the XmlMapper.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataBindingXmlBenchmark {
+
+	@Param({ "100" })
+	public int fields;
+
+	@Param({ "10", "10000" })
+	public int rows;
+
+	private DataRoot dataroot;
+	private DocumentGenerateService service;
+	private XmlMapper xmlMapper;
+
+	@Setup
+	public void setUp() {
+		dataroot = new DataRoot();
+		dataroot.setXmlns("PLEODOX");
+		dataroot.putAll(SyntheticTemplates.data(fields, 8, rows, 3));
+
+		service = new DocumentGenerateService();
+		xmlMapper = new XmlMapper();
+	}
+
+	@Benchmark
+	public long getDataRootInputStream() throws Exception {
+		try (InputStream is = service.getDataRootInputStream(dataroot)) {
+			return is.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+
+	@Benchmark
+	public long stringBuilding() throws Exception {
+		final Map<String, Object> data = dataroot.getData();
+		final StringBuilder stringBuilder = new StringBuilder(
+				"<?xml version='1.0' encoding='UTF-8'?><TestXMLNode xmlns=\"").append(dataroot.getXmlns())
+						.append("\">");
+
+		if (!data.isEmpty()) {
+			String val = xmlMapper.writer().writeValueAsString(data);
+			int max = val.length() - 10;
+			stringBuilder.append(val.substring(9, max));
+		}
+
+		stringBuilder.append("</TestXMLNode>");
+		try (InputStream is = new ByteArrayInputStream(stringBuilder.toString().getBytes(StandardCharsets.UTF_8))) {
+			return is.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+}
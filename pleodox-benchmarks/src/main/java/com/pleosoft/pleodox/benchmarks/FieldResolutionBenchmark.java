@@ -0,0 +1,142 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.docx4j.model.fields.merge.DataFieldName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.integration.dsl.Transformers;
+import org.springframework.integration.transformer.ObjectToMapTransformer;
+import org.springframework.messaging.support.GenericMessage;
+import org.springframework.util.ObjectUtils;
+import org.springframework.util.StringUtils;
+
+import com.pleosoft.pleodox.boot.data.PlaceholdersData;
+import com.pleosoft.pleodox.boot.service.DocumentGenerateService;
+import com.pleosoft.pleodox.boot.service.PlaceholderPathIndex;
+
+/**
+ * Filling the defaults and flattening the request data into merge field values
+ * with the {@link PlaceholderPathIndex} against the former key walk followed by
+ * the ObjectToMapTransformer. Every tenth top level field is missing from the
+ * request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldResolutionBenchmark {
+
+	@Param({ "100", "1000" })
+	public int fields;
+
+	@Param({ "10", "1000" })
+	public int rows;
+
+	private PlaceholdersData placeholders;
+	private PlaceholderPathIndex pathIndex;
+	private Map<String, Object> request;
+
+	@Setup
+	public void setUp() {
+		final Map<String, Object> data = SyntheticTemplates.data(fields, 8, rows, 3);
+		placeholders = DocumentGenerateService.mapToPlaceHoldersData(null, data);
+		pathIndex = new PlaceholderPathIndex(placeholders);
+
+		for (int i = 0; i < fields; i += 10) {
+			data.remove("field" + i);
+		}
+		request = data;
+	}
+
+	@Benchmark
+	public void pathIndex(Blackhole blackhole) {
+		final Map<String, Object> data = new HashMap<>(request);
+		final Map<DataFieldName, String> items = new HashMap<>();
+		final Map<String, String> properties = new HashMap<>();
+		pathIndex.resolve(data, items, properties);
+		blackhole.consume(items);
+		blackhole.consume(properties);
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public void legacy(Blackhole blackhole) {
+		final Map<String, Object> data = new HashMap<>(request);
+
+		Set<String> templateKeys = placeholders.getKeys();
+		PlaceholdersData newData = DocumentGenerateService.mapToPlaceHoldersData(null, data);
+		Set<String> newKeys = newData.getKeys();
+		newKeys.retainAll(templateKeys);
+
+		for (String templateKey : templateKeys) {
+			Map<String, Object> tmpMap = data;
+			String[] keys = StringUtils.delimitedListToStringArray(templateKey, ".");
+			for (String k : keys) {
+				Object object = tmpMap.get(k);
+				if (object instanceof Map) {
+					tmpMap = (Map<String, Object>) object;
+				}
+			}
+			if (!newKeys.contains(templateKey) || ObjectUtils.isEmpty(tmpMap.get(keys[keys.length - 1]))) {
+				Set<String> tableColumns = placeholders.getTableColumns(templateKey);
+				if (tableColumns != null) {
+					HashMap<String, String> tableEntry = new HashMap<>();
+					for (String column : tableColumns) {
+						tableEntry.put(column, PlaceholderPathIndex.UNKNOWN_STRING);
+					}
+					tmpMap.put(keys[keys.length - 1], tableEntry);
+				} else {
+					tmpMap.put(keys[keys.length - 1], PlaceholderPathIndex.UNKNOWN_STRING);
+				}
+			}
+		}
+
+		ObjectToMapTransformer mapTransformer = Transformers.toMap(true);
+		Map<String, String> payload = (Map<String, String>) mapTransformer.transform(new GenericMessage<>(data))
+				.getPayload();
+
+		final Map<DataFieldName, String> items = new HashMap<>();
+		final Map<String, String> properties = new HashMap<>();
+		for (Entry<String, String> entry : payload.entrySet()) {
+			items.put(new DataFieldName(entry.getKey()), entry.getValue());
+			if (!entry.getKey().contains(".")) {
+				properties.put(entry.getKey(), entry.getValue());
+			}
+		}
+		blackhole.consume(items);
+		blackhole.consume(properties);
+	}
+}
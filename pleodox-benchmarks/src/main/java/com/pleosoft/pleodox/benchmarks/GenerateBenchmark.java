@@ -0,0 +1,98 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.service.DocumentGenerateService;
+import com.pleosoft.pleodox.boot.service.DocxGenerator;
+import com.pleosoft.pleodox.boot.service.TemplateCache;
+
+/**
+ * A whole DOCX render: mail merge, field update, data binding and save, with
+ * the template loaded from its bytes or from the template cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GenerateBenchmark {
+
+	@Param({ "10", "100" })
+	public int fields;
+
+	@Param({ "10", "500" })
+	public int rows;
+
+	@Param({ "3" })
+	public int depth;
+
+	@Param({ "false", "true" })
+	public boolean cached;
+
+	private byte[] template;
+	private Path templateFile;
+	private DataRoot dataroot;
+	private DocxGenerator generator;
+
+	@Setup
+	public void setUp() throws Exception {
+		template = SyntheticTemplates.template(fields, 4, depth, 64);
+		templateFile = Files.createTempFile("pleodox-benchmark", ".docx");
+		Files.write(templateFile, template);
+
+		dataroot = new DataRoot();
+		dataroot.setXmlns("PLEODOX");
+		dataroot.putAll(SyntheticTemplates.data(fields, 4, rows, depth));
+
+		final DocumentGenerateService service = new DocumentGenerateService();
+		generator = cached ? new DocxGenerator(service, new TemplateCache()) : new DocxGenerator(service);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(templateFile);
+	}
+
+	@Benchmark
+	public TemplateOptions generateWord() throws Exception {
+		final TemplateOptions options = new TemplateOptions().addOption("templatePath", templateFile);
+		generator.generate(new ByteArrayInputStream(template), OutputStream.nullOutputStream(), dataroot, options);
+		return options;
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.FileSystemUtils;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+import com.pleosoft.pleodox.boot.service.DocumentGenerateService;
+import com.pleosoft.pleodox.boot.service.DocxGenerator;
+import com.pleosoft.pleodox.boot.service.GenerationExecutors;
+import com.pleosoft.pleodox.boot.service.NoopDocumentGenerationHandler;
+import com.pleosoft.pleodox.boot.service.TemplateCache;
+import com.pleosoft.pleodox.boot.service.TemplatesService;
+import com.pleosoft.pleodox.boot.service.TransformationService;
+import com.pleosoft.pleodox.boot.storage.DefaultStorageService;
+
+/**
+ * Load test of PDF requests against a converter which answers after a fixed
+ * latency, as an office converter does. Compares the platform thread per
+ * request model with virtual threads waiting on the I/O and a bounded render
+ * pool doing the docx4j work. Reports the throughput and the peak number of
+ * platform threads of each model.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.pleosoft.pleodox.benchmarks.GenerationLoadTest [requests] [clients] [latencyMs] [renderThreads]
+ * </pre>
+ */
+public class GenerationLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final long latencyMs = args.length > 2 ? Long.parseLong(args[2]) : 200;
+		final int renderThreads = args.length > 3 ? Integer.parseInt(args[3])
+				: Runtime.getRuntime().availableProcessors();
+
+		final Path root = Files.createTempDirectory("pleodox-loadtest");
+		try {
+			final DefaultStorageService storageService = new DefaultStorageService(root.resolve("temporary"),
+					root.resolve("templates"));
+			Files.write(root.resolve("templates").resolve("template.docx"),
+					SyntheticTemplates.template(50, 4, 3, 64));
+
+			final DocumentGenerateService templatingService = new DocumentGenerateService();
+			final TemplateCache templateCache = new TemplateCache();
+			final TemplatesService templatesService = new TemplatesService(templatingService, storageService,
+					new SlowTransformationService(latencyMs), new NoopDocumentGenerationHandler(),
+					Collections.singletonList(new DocxGenerator(templatingService, templateCache)));
+			templatesService.setTemplateCache(templateCache);
+
+			final DataRoot request = new DataRoot();
+			request.putAll(SyntheticTemplates.data(50, 4, 20, 3));
+
+			System.out.println("requests=" + requests + " clients=" + clients + " latencyMs=" + latencyMs
+					+ " renderThreads=" + renderThreads + " virtualThreads="
+					+ GenerationExecutors.isVirtualThreadsAvailable());
+
+			// warm up the caches and the JIT with the platform model
+			run("warmup", templatesService, request, Math.min(requests, 50),
+					Executors.newFixedThreadPool(renderThreads));
+
+			run("platform", templatesService, request, requests, Executors.newFixedThreadPool(clients));
+
+			templatesService.setRenderExecutor(GenerationExecutors.newRenderExecutor(renderThreads));
+			run("virtual", templatesService, request, requests, GenerationExecutors.newAsyncExecutor());
+		} finally {
+			FileSystemUtils.deleteRecursively(root);
+		}
+		System.exit(0);
+	}
+
+	private static void run(String model, TemplatesService templatesService, DataRoot request, int requests,
+			ExecutorService clients) throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		final long started = System.nanoTime();
+		final List<Future<Path>> futures = new ArrayList<>(requests);
+		for (int i = 0; i < requests; i++) {
+			final String folder = model + "-" + i;
+			futures.add(clients.submit(() -> templatesService.generateDocument(request, TemplateOutputFormat.PDF,
+					Boolean.FALSE, null, Collections.singletonList("template.docx"), folder, null, Boolean.FALSE)));
+		}
+
+		for (Future<Path> future : futures) {
+			Files.deleteIfExists(future.get());
+		}
+		final long elapsed = System.nanoTime() - started;
+		clients.shutdown();
+
+		System.out.printf("%-8s %6d ms %8.1f docs/s  peak platform threads %d%n", model,
+				TimeUnit.NANOSECONDS.toMillis(elapsed), requests / (elapsed / 1e9), threads.getPeakThreadCount());
+	}
+
+	/**
+	 * Stands in for the office converter, answers after the latency with the
+	 * document itself.
+	 */
+	private static class SlowTransformationService extends TransformationService {
+
+		private final long latencyMs;
+
+		SlowTransformationService(long latencyMs) {
+			super(null);
+			this.latencyMs = latencyMs;
+		}
+
+		@Override
+		public Path transform(File sourceDocument, TemplateOutputFormat outputFormat) {
+			try {
+				Thread.sleep(latencyMs);
+				final Path source = sourceDocument.toPath();
+				final String name = source.getFileName().toString();
+				return Files.move(source,
+						source.resolveSibling(name.substring(0, name.lastIndexOf('.')) + outputFormat.getExtension()),
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import com.pleosoft.pleodox.boot.service.PdfMergeService;
+import com.pleosoft.pleodox.boot.service.PdfMergeStats;
+
+/**
+ * Merging generated PDFs with an image on every page, against the total page
+ * count and the heap budget of the merge: -1 keeps everything on the heap, 0
+ * everything in scratch files. {@code peakHeapKb} is the sampled peak heap of
+ * the last merge of an iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class PdfMergeBenchmark {
+
+	@Param({ "20" })
+	public int documents;
+
+	@Param({ "200", "2000" })
+	public int pages;
+
+	@Param({ "-1", "16777216", "0" })
+	public long maxMainMemory;
+
+	private Path root;
+	private List<File> sources;
+	private PdfMergeService mergeService;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class MergeCounters {
+
+		public long peakHeapKb;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			peakHeapKb = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		root = Files.createTempDirectory("pleodox-benchmark");
+		mergeService = new PdfMergeService();
+		mergeService.setMaxMainMemoryBytes(maxMainMemory);
+		mergeService.setScratchDirectory(root.resolve("scratch"));
+
+		final Random random = new Random(42);
+		final BufferedImage image = new BufferedImage(128, 128, BufferedImage.TYPE_INT_RGB);
+		sources = new ArrayList<>(documents);
+		for (int d = 0; d < documents; d++) {
+			final Path pdf = root.resolve("document" + d + ".pdf");
+			try (PDDocument doc = new PDDocument()) {
+				for (int p = 0; p < pages / documents; p++) {
+					for (int x = 0; x < image.getWidth(); x++) {
+						for (int y = 0; y < image.getHeight(); y++) {
+							image.setRGB(x, y, random.nextInt());
+						}
+					}
+					final PDImageXObject xObject = LosslessFactory.createFromImage(doc, image);
+
+					final PDPage page = new PDPage();
+					doc.addPage(page);
+					try (PDPageContentStream content = new PDPageContentStream(doc, page)) {
+						content.drawImage(xObject, 72, 400);
+						content.beginText();
+						content.setFont(PDType1Font.HELVETICA, 12);
+						content.newLineAtOffset(72, 720);
+						content.showText("Document " + d + ", page " + p);
+						content.endText();
+					}
+				}
+				doc.save(pdf.toFile());
+			}
+			sources.add(pdf.toFile());
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		FileSystemUtils.deleteRecursively(root);
+	}
+
+	@Benchmark
+	public int merge(MergeCounters counters) throws Exception {
+		final PdfMergeStats stats = mergeService.merge(sources, OutputStream.nullOutputStream());
+		counters.peakHeapKb = stats.getPeakHeapBytes() / 1024;
+		return stats.getPageCount();
+	}
+}
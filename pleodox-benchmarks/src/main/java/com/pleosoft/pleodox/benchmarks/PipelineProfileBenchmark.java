@@ -0,0 +1,168 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+import com.pleosoft.pleodox.boot.service.DocumentGenerateService;
+import com.pleosoft.pleodox.boot.service.DocumentGenerationHandler;
+import com.pleosoft.pleodox.boot.service.DocxGenerator;
+import com.pleosoft.pleodox.boot.service.GenerationEvent;
+import com.pleosoft.pleodox.boot.service.GenerationTrace;
+import com.pleosoft.pleodox.boot.service.TemplateCache;
+import com.pleosoft.pleodox.boot.service.TemplateProfile;
+
+/**
+ * A DOCX render of templates using only MERGEFIELDs, only bound content
+ * controls or both, with the phases skipped by the template profile against
+ * the full pipeline. The auxiliary counters are the average microseconds per
+ * render spent in each phase, a skipped phase counts zero.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PipelineProfileBenchmark {
+
+	@Param({ "mergefields", "bindings", "both" })
+	public String features;
+
+	@Param({ "100" })
+	public int fields;
+
+	@Param({ "false", "true" })
+	public boolean fullPipeline;
+
+	private byte[] template;
+	private Path templateFile;
+	private DataRoot dataroot;
+	private DocxGenerator generator;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class PhaseCounters implements DocumentGenerationHandler {
+
+		public double mailMergeUs;
+		public double fieldUpdateUs;
+		public double bindUs;
+		public double saveUs;
+
+		private long renders;
+		private long mailMergeNanos;
+		private long fieldUpdateNanos;
+		private long bindNanos;
+		private long saveNanos;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			renders = mailMergeNanos = fieldUpdateNanos = bindNanos = saveNanos = 0;
+			mailMergeUs = fieldUpdateUs = bindUs = saveUs = 0;
+		}
+
+		@Override
+		public void beforeDocumentGenerated() {
+		}
+
+		@Override
+		public void afterDocumentGenerated() {
+		}
+
+		@Override
+		public void phaseCompleted(GenerationEvent event) {
+			final long nanos = event.getDuration(TimeUnit.NANOSECONDS);
+			switch (event.getPhase()) {
+			case MAIL_MERGE:
+				mailMergeNanos += nanos;
+				break;
+			case FIELD_UPDATE:
+				fieldUpdateNanos += nanos;
+				break;
+			case XML_BIND:
+				bindNanos += nanos;
+				break;
+			case SAVE:
+				saveNanos += nanos;
+				break;
+			default:
+				break;
+			}
+		}
+
+		void rendered() {
+			renders++;
+			mailMergeUs = mailMergeNanos / 1000.0 / renders;
+			fieldUpdateUs = fieldUpdateNanos / 1000.0 / renders;
+			bindUs = bindNanos / 1000.0 / renders;
+			saveUs = saveNanos / 1000.0 / renders;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		template = SyntheticTemplates.template(fields, 4, 3, 64, !"bindings".equals(features),
+				!"mergefields".equals(features));
+		templateFile = Files.createTempFile("pleodox-benchmark", ".docx");
+		Files.write(templateFile, template);
+
+		dataroot = new DataRoot();
+		dataroot.setXmlns("PLEODOX");
+		dataroot.putAll(SyntheticTemplates.data(fields, 4, 20, 3));
+
+		// the template version, which the profile is cached by, comes from the template cache
+		generator = new DocxGenerator(new DocumentGenerateService(), new TemplateCache());
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(templateFile);
+	}
+
+	@Benchmark
+	public TemplateOptions generateWord(PhaseCounters counters) throws Exception {
+		final TemplateOptions options = new TemplateOptions().addOption("templatePath", templateFile)
+				.addOption(TemplateProfile.FULL_PIPELINE_OPTION, fullPipeline)
+				.addOption(GenerationTrace.OPTION, new GenerationTrace(counters, "template.docx",
+						TemplateOutputFormat.DOCX));
+		generator.generate(new ByteArrayInputStream(template), OutputStream.nullOutputStream(), dataroot, options);
+		counters.rendered();
+		return options;
+	}
+}
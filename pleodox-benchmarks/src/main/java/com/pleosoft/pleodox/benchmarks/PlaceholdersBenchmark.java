@@ -0,0 +1,81 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pleosoft.pleodox.boot.data.PlaceholdersData;
+import com.pleosoft.pleodox.boot.service.DocumentGenerateService;
+
+/**
+ * Flattening large nested request maps into placeholder keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaceholdersBenchmark {
+
+	@Param({ "100", "1000" })
+	public int fields;
+
+	@Param({ "10", "1000" })
+	public int rows;
+
+	@Param({ "3", "16" })
+	public int depth;
+
+	private Map<String, Object> data;
+
+	@Setup
+	public void setUp() {
+		data = SyntheticTemplates.data(fields, 8, rows, depth);
+	}
+
+	@Benchmark
+	public void flattenMap(Blackhole blackhole) {
+		final Set<String> keys = new HashSet<>();
+		final Map<String, Set<String>> tables = new HashMap<>();
+		DocumentGenerateService.flattenMap(null, data, keys, tables);
+		blackhole.consume(keys);
+		blackhole.consume(tables);
+	}
+
+	@Benchmark
+	public PlaceholdersData mapToPlaceHoldersData() {
+		return DocumentGenerateService.mapToPlaceHoldersData(null, data);
+	}
+}
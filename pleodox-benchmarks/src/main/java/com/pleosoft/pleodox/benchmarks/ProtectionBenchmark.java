@@ -0,0 +1,74 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.docx4j.Docx4J;
+import org.docx4j.openpackaging.packages.ProtectDocument;
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.docx4j.wml.STDocProtect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pleosoft.pleodox.boot.service.DocumentProtectionService;
+
+/**
+ * The read-only protection of a document with a password, docx4j's
+ * {@code ProtectDocument} against the cached hashes of the
+ * {@code DocumentProtectionService}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtectionBenchmark {
+
+	private static final String PASSWORD = "pleodox";
+
+	private WordprocessingMLPackage wordMLPackage;
+	private DocumentProtectionService protectionService;
+
+	@Setup
+	public void setUp() throws Exception {
+		wordMLPackage = Docx4J.load(new ByteArrayInputStream(SyntheticTemplates.template(10, 4, 3, 0)));
+		protectionService = new DocumentProtectionService();
+	}
+
+	@Benchmark
+	public WordprocessingMLPackage protect() throws Exception {
+		new ProtectDocument(wordMLPackage).restrictEditing(STDocProtect.READ_ONLY, PASSWORD);
+		return wordMLPackage;
+	}
+
+	@Benchmark
+	public WordprocessingMLPackage protectCached() throws Exception {
+		protectionService.protect(wordMLPackage, STDocProtect.READ_ONLY, PASSWORD);
+		return wordMLPackage;
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds minimal DOCX templates and matching request data of a given size.
+ * Every field is a MERGEFIELD followed by a content control bound to the
+ * PLEODOX custom xml part, the table columns are MERGEFIELDs of the
+ * {@code table} list and the nested field sits {@code depth} maps deep.
+ */
+public final class SyntheticTemplates {
+
+	public static final String STORE_ITEM_ID = "{5F4DFD3F-2E23-4E55-8B1E-62B2E4C8AB10}";
+
+	private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+	private static final String RELATIONSHIPS = "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">";
+	private static final String RELATIONSHIP_TYPES = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/";
+
+	private SyntheticTemplates() {
+	}
+
+	public static byte[] template(int fields, int columns, int depth, int mediaKb) throws IOException {
+		return template(fields, columns, depth, mediaKb, true, true);
+	}
+
+	/**
+	 * @param mergeFields whether the document has MERGEFIELDs
+	 * @param bindings    whether the document has bound content controls
+	 */
+	public static byte[] template(int fields, int columns, int depth, int mediaKb, boolean mergeFields,
+			boolean bindings) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+			put(zos, "[Content_Types].xml", XML_HEADER
+					+ "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+					+ "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+					+ "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+					+ "<Default Extension=\"png\" ContentType=\"image/png\"/>"
+					+ "<Override PartName=\"/word/document.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml\"/>"
+					+ "<Override PartName=\"/customXml/itemProps1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.customXmlProperties+xml\"/>"
+					+ "</Types>");
+			put(zos, "_rels/.rels", XML_HEADER + RELATIONSHIPS + "<Relationship Id=\"rId1\" Type=\""
+					+ RELATIONSHIP_TYPES + "officeDocument\" Target=\"word/document.xml\"/></Relationships>");
+
+			final StringBuilder rels = new StringBuilder(XML_HEADER).append(RELATIONSHIPS)
+					.append("<Relationship Id=\"rId1\" Type=\"").append(RELATIONSHIP_TYPES)
+					.append("customXml\" Target=\"../customXml/item1.xml\"/>");
+			if (mediaKb > 0) {
+				rels.append("<Relationship Id=\"rId2\" Type=\"").append(RELATIONSHIP_TYPES)
+						.append("image\" Target=\"media/image1.png\"/>");
+			}
+			put(zos, "word/_rels/document.xml.rels", rels.append("</Relationships>").toString());
+			put(zos, "word/document.xml", document(fields, columns, depth, mergeFields, bindings));
+
+			put(zos, "customXml/item1.xml", customXml(fields, columns, depth));
+			put(zos, "customXml/_rels/item1.xml.rels", XML_HEADER + RELATIONSHIPS + "<Relationship Id=\"rId1\" Type=\""
+					+ RELATIONSHIP_TYPES + "customXmlProps\" Target=\"itemProps1.xml\"/></Relationships>");
+			put(zos, "customXml/itemProps1.xml", XML_HEADER + "<ds:datastoreItem ds:itemID=\"" + STORE_ITEM_ID
+					+ "\" xmlns:ds=\"http://schemas.openxmlformats.org/officeDocument/2006/customXml\"><ds:schemaRefs/></ds:datastoreItem>");
+
+			if (mediaKb > 0) {
+				// random bytes do not compress, like real images
+				final byte[] media = new byte[mediaKb * 1024];
+				new Random(42).nextBytes(media);
+				zos.putNextEntry(new ZipEntry("word/media/image1.png"));
+				zos.write(media);
+				zos.closeEntry();
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	public static Map<String, Object> data(int fields, int columns, int rows, int depth) {
+		final Map<String, Object> data = new HashMap<>();
+		for (int i = 0; i < fields; i++) {
+			data.put("field" + i, "value " + i);
+		}
+
+		if (columns > 0) {
+			final List<Object> table = new ArrayList<>(rows);
+			for (int r = 0; r < rows; r++) {
+				final Map<String, Object> row = new HashMap<>();
+				for (int c = 0; c < columns; c++) {
+					row.put("col" + c, "r" + r + "c" + c);
+				}
+				table.add(row);
+			}
+			data.put("table", table);
+		}
+
+		if (depth > 0) {
+			Map<String, Object> current = new HashMap<>();
+			current.put("leaf", "deep");
+			for (int d = depth - 1; d >= 0; d--) {
+				final Map<String, Object> parent = new HashMap<>();
+				parent.put("level" + d, current);
+				current = parent;
+			}
+			data.putAll(current);
+		}
+		return data;
+	}
+
+	private static String document(int fields, int columns, int depth, boolean mergeFields, boolean bindings) {
+		final StringBuilder sb = new StringBuilder(XML_HEADER).append(
+				"<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"><w:body>");
+		for (int i = 0; i < fields; i++) {
+			sb.append("<w:p><w:r><w:t xml:space=\"preserve\">Field ").append(i).append(": </w:t></w:r>");
+			if (mergeFields) {
+				sb.append("<w:fldSimple w:instr=\" MERGEFIELD field").append(i).append(" \\* MERGEFORMAT \"><w:r><w:t>[field")
+						.append(i).append("]</w:t></w:r></w:fldSimple>");
+			}
+			if (bindings) {
+				sb.append("<w:sdt><w:sdtPr><w:dataBinding w:prefixMappings=\"xmlns:ns0='PLEODOX'\"")
+						.append(" w:xpath=\"/ns0:TestXMLNode[1]/ns0:field").append(i).append("[1]\" w:storeItemID=\"")
+						.append(STORE_ITEM_ID).append("\"/><w:text/></w:sdtPr><w:sdtContent><w:r><w:t>field")
+						.append(i).append("</w:t></w:r></w:sdtContent></w:sdt>");
+			}
+			sb.append("</w:p>");
+		}
+
+		if (!mergeFields) {
+			return sb.append("<w:sectPr/></w:body></w:document>").toString();
+		}
+
+		if (columns > 0) {
+			sb.append("<w:tbl><w:tr>");
+			for (int c = 0; c < columns; c++) {
+				sb.append("<w:tc><w:p><w:fldSimple w:instr=\" MERGEFIELD table[0].col").append(c)
+						.append(" \"><w:r><w:t>[col").append(c).append("]</w:t></w:r></w:fldSimple></w:p></w:tc>");
+			}
+			sb.append("</w:tr></w:tbl>");
+		}
+
+		if (depth > 0) {
+			sb.append("<w:p><w:fldSimple w:instr=\" MERGEFIELD ").append(nestedPath(depth))
+					.append(".leaf \"><w:r><w:t>[leaf]</w:t></w:r></w:fldSimple></w:p>");
+		}
+		return sb.append("<w:sectPr/></w:body></w:document>").toString();
+	}
+
+	private static String customXml(int fields, int columns, int depth) {
+		final StringBuilder sb = new StringBuilder(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?><TestXMLNode xmlns=\"PLEODOX\">");
+		for (int i = 0; i < fields; i++) {
+			sb.append("<field").append(i).append("/>");
+		}
+
+		if (columns > 0) {
+			// two rows mark the element as a table
+			for (int r = 0; r < 2; r++) {
+				sb.append("<table>");
+				for (int c = 0; c < columns; c++) {
+					sb.append("<col").append(c).append("/>");
+				}
+				sb.append("</table>");
+			}
+		}
+
+		if (depth > 0) {
+			for (int d = 0; d < depth; d++) {
+				sb.append("<level").append(d).append(">");
+			}
+			sb.append("<leaf/>");
+			for (int d = depth - 1; d >= 0; d--) {
+				sb.append("</level").append(d).append(">");
+			}
+		}
+		return sb.append("</TestXMLNode>").toString();
+	}
+
+	private static String nestedPath(int depth) {
+		final StringBuilder path = new StringBuilder();
+		for (int d = 0; d < depth; d++) {
+			path.append(d == 0 ? "" : ".").append("level").append(d);
+		}
+		return path.toString();
+	}
+
+	private static void put(ZipOutputStream zos, String name, String content) throws IOException {
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write(content.getBytes(StandardCharsets.UTF_8));
+		zos.closeEntry();
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.docx4j.Docx4J;
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pleosoft.pleodox.boot.data.PlaceholdersData;
+import com.pleosoft.pleodox.boot.service.DocumentGenerateService;
+import com.pleosoft.pleodox.boot.service.TemplateCache;
+
+/**
+ * Loading a template and reading its placeholders, from the raw bytes and from
+ * the caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+
+	@Param({ "10", "100" })
+	public int fields;
+
+	@Param({ "0", "512" })
+	public int mediaKb;
+
+	private byte[] template;
+	private Path templateFile;
+	private DocumentGenerateService service;
+	private TemplateCache templateCache;
+
+	@Setup
+	public void setUp() throws Exception {
+		template = SyntheticTemplates.template(fields, 4, 3, mediaKb);
+		templateFile = Files.createTempFile("pleodox-benchmark", ".docx");
+		Files.write(templateFile, template);
+
+		service = new DocumentGenerateService();
+		templateCache = new TemplateCache();
+		templateCache.get(templateFile);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(templateFile);
+	}
+
+	@Benchmark
+	public WordprocessingMLPackage load() throws Exception {
+		return Docx4J.load(new ByteArrayInputStream(template));
+	}
+
+	@Benchmark
+	public WordprocessingMLPackage loadCached() throws Exception {
+		return templateCache.getPackage(templateFile);
+	}
+
+	@Benchmark
+	public PlaceholdersData retrieveFields() throws Exception {
+		return service.retrieveFields(Docx4J.load(new ByteArrayInputStream(template)));
+	}
+
+	@Benchmark
+	public PlaceholdersData retrieveFieldsIndexed() throws Exception {
+		return service.retrieveFields(new ByteArrayInputStream(template));
+	}
+}
@@ -17,6 +17,7 @@
 package com.pleosoft.pleodox.boot.data;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -24,8 +25,35 @@ import java.util.Set;
 
 public class PlaceholdersData implements Serializable {
 
-	private final Set<String> fields = new HashSet<>();
-	private final Map<String, Set<String>> tables = new HashMap<>();
+	private final Set<String> fields;
+	private final Map<String, Set<String>> tables;
+
+	public PlaceholdersData() {
+		this.fields = new HashSet<>();
+		this.tables = new HashMap<>();
+	}
+
+	private PlaceholdersData(Set<String> fields, Map<String, Set<String>> tables) {
+		this.fields = fields;
+		this.tables = tables;
+	}
+
+	public PlaceholdersData immutableCopy() {
+		Map<String, Set<String>> tablesCopy = new HashMap<>();
+		for (Map.Entry<String, Set<String>> entry : tables.entrySet()) {
+			tablesCopy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+		}
+		return new PlaceholdersData(Collections.unmodifiableSet(new HashSet<>(fields)),
+				Collections.unmodifiableMap(tablesCopy));
+	}
+
+	public PlaceholdersData mutableCopy() {
+		Map<String, Set<String>> tablesCopy = new HashMap<>();
+		for (Map.Entry<String, Set<String>> entry : tables.entrySet()) {
+			tablesCopy.put(entry.getKey(), new HashSet<>(entry.getValue()));
+		}
+		return new PlaceholdersData(new HashSet<>(fields), tablesCopy);
+	}
 
 	public Set<String> getFields() {
 		return fields;
@@ -16,12 +16,22 @@
 
 package com.pleosoft.pleodox.boot.data;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class TemplateOptions {
 	private final Map<String, Object> options = new HashMap<>();
 
+	public TemplateOptions() {
+	}
+
+	public TemplateOptions(TemplateOptions options) {
+		if (options != null) {
+			this.options.putAll(options.options);
+		}
+	}
+
 	public TemplateOptions addOption(String key, Object value) {
 		options.put(key, value);
 		return this;
@@ -30,4 +40,8 @@ public class TemplateOptions {
 	public Object getOption(String key) {
 		return options.get(key);
 	}
+
+	public Map<String, Object> getOptions() {
+		return Collections.unmodifiableMap(options);
+	}
 }
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.pleosoft.pleodox.boot.service.TemplateRejectedException.Reason;
+
+/**
+ * Admits requests up to a concurrency limit that follows the observed latency.
+ * The limit grows by one per round of requests while the recent latency stays
+ * within twice the baseline, the lowest latency seen, and shrinks by the ratio
+ * of the two once requests get slower. A timeout or a full conversion queue
+ * cuts it by a fixed factor. Requests over the limit
+ * wait in a bounded FIFO queue, they are rejected with a
+ * {@link TemplateRejectedException} when the queue is full or when no permit
+ * is free within the maximum wait, instead of piling up docx4j work on the
+ * heap.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+	/** A permit of a limiter that admits everything, its release does nothing. */
+	public static final Permit UNLIMITED = new Permit(null);
+
+	// rounds averaged by the recent latency and followed by the baseline when
+	// it rises, a round is as many requests as the limit
+	private static final int SHORT_WINDOW = 3;
+	private static final int LONG_WINDOW = 2000;
+	// latency increase over the baseline tolerated before the limit shrinks
+	private static final double TOLERANCE = 2.0;
+	private static final double SMOOTHING = 0.2;
+	private static final double BACKOFF = 0.9;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Deque<Waiter> waiters = new ArrayDeque<>();
+	private final int maxLimit;
+	private final int queueCapacity;
+	private final long maxWaitNanos;
+
+	private int minLimit = 1;
+	private double limit;
+	private int inFlight;
+	private double shortRtt;
+	private double longRtt;
+	private double roundRtt;
+	private int roundSamples;
+
+	private final LongAdder admittedCount = new LongAdder();
+	private final LongAdder queueFullCount = new LongAdder();
+	private final LongAdder deadlineCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+
+	public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit, int queueCapacity, long maxWait,
+			TimeUnit unit) {
+		Assert.isTrue(initialLimit > 0, "initialLimit must be positive");
+		Assert.isTrue(maxLimit >= initialLimit, "maxLimit cannot be lower than initialLimit");
+		Assert.isTrue(queueCapacity >= 0, "queueCapacity parameter cannot be negative");
+		Assert.isTrue(maxWait >= 0, "maxWait parameter cannot be negative");
+		Assert.notNull(unit, "unit parameter cannot be empty");
+
+		this.limit = initialLimit;
+		this.maxLimit = maxLimit;
+		this.queueCapacity = queueCapacity;
+		this.maxWaitNanos = unit.toNanos(maxWait);
+	}
+
+	/**
+	 * Waits at most the maximum wait of the limiter for a permit, which has to
+	 * be released once the request is done.
+	 *
+	 * @throws TemplateRejectedException when the queue is full or the deadline
+	 *                                   passed
+	 */
+	public Permit acquire() {
+		return acquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public Permit acquire(long timeout, TimeUnit unit) {
+		lock.lock();
+		try {
+			if (waiters.isEmpty() && inFlight < limit) {
+				return admit();
+			}
+
+			long nanos = unit.toNanos(timeout);
+			if (waiters.size() >= queueCapacity || nanos <= 0) {
+				queueFullCount.increment();
+				throw new TemplateRejectedException(Reason.QUEUE_FULL, "Too many concurrent requests (" + inFlight
+						+ " in flight, " + waiters.size() + " waiting), rejecting the request");
+			}
+
+			final Waiter waiter = new Waiter(lock.newCondition());
+			waiters.addLast(waiter);
+			try {
+				while (!waiter.granted) {
+					if (nanos <= 0) {
+						waiters.remove(waiter);
+						deadlineCount.increment();
+						throw new TemplateRejectedException(Reason.DEADLINE,
+								"No capacity within " + unit.toMillis(timeout) + "ms, rejecting the request");
+					}
+					nanos = waiter.condition.awaitNanos(nanos);
+				}
+			} catch (InterruptedException e) {
+				if (waiter.granted) {
+					// the permit was handed over meanwhile, pass it on
+					inFlight--;
+					grantWaiters();
+				} else {
+					waiters.remove(waiter);
+				}
+				Thread.currentThread().interrupt();
+				throw new TemplateFailedException(e);
+			}
+			admittedCount.increment();
+			return new Permit(this);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Permit admit() {
+		inFlight++;
+		admittedCount.increment();
+		return new Permit(this);
+	}
+
+	// with the lock held
+	private void grantWaiters() {
+		while (!waiters.isEmpty() && inFlight < limit) {
+			final Waiter waiter = waiters.pollFirst();
+			waiter.granted = true;
+			inFlight++;
+			waiter.condition.signal();
+		}
+	}
+
+	private void release(long rttNanos, Throwable failure) {
+		lock.lock();
+		try {
+			final boolean saturated = inFlight * 2 >= limit;
+			inFlight--;
+
+			if (isOverload(failure)) {
+				droppedCount.increment();
+				limit = Math.max(minLimit, limit * BACKOFF);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Request dropped with " + failure + ", limit lowered to " + getLimit());
+				}
+			} else if (failure == null) {
+				sample(rttNanos, saturated);
+			}
+			// other failures, e.g. a missing template, say nothing about the load
+
+			grantWaiters();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void sample(long rttNanos, boolean saturated) {
+		roundRtt += rttNanos;
+		if (++roundSamples < limit) {
+			return;
+		}
+		final double rtt = roundRtt / roundSamples;
+		roundRtt = 0;
+		roundSamples = 0;
+
+		if (longRtt == 0) {
+			shortRtt = rtt;
+			longRtt = rtt;
+			return;
+		}
+		shortRtt += (rtt - shortRtt) * 2 / (SHORT_WINDOW + 1);
+		// the baseline is the lowest latency seen, it only rises slowly when
+		// the documents really got slower to render
+		longRtt = rtt < longRtt ? rtt : longRtt + (rtt - longRtt) / LONG_WINDOW;
+
+		// an underused limit is not raised, it would grow without bounds
+		if (!saturated) {
+			return;
+		}
+
+		final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+		final double newLimit = limit * gradient + 1;
+		limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+	}
+
+	private static boolean isOverload(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof TimeoutException || cause instanceof RejectedExecutionException
+					|| cause instanceof OutOfMemoryError) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) Math.ceil(limit);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return waiters.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public long getAdmittedCount() {
+		return admittedCount.sum();
+	}
+
+	public long getRejectedCount() {
+		return queueFullCount.sum() + deadlineCount.sum();
+	}
+
+	public long getQueueFullCount() {
+		return queueFullCount.sum();
+	}
+
+	public long getDeadlineCount() {
+		return deadlineCount.sum();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/** Recent average latency of the successful requests. */
+	public long getLatency(TimeUnit unit) {
+		lock.lock();
+		try {
+			return unit.convert((long) shortRtt, TimeUnit.NANOSECONDS);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Lowest latency seen, the recent one is compared with it. */
+	public long getBaselineLatency(TimeUnit unit) {
+		lock.lock();
+		try {
+			return unit.convert((long) longRtt, TimeUnit.NANOSECONDS);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void setMinLimit(int minLimit) {
+		Assert.isTrue(minLimit > 0, "minLimit must be positive");
+		Assert.isTrue(minLimit <= maxLimit, "minLimit cannot be greater than maxLimit");
+		lock.lock();
+		try {
+			this.minLimit = minLimit;
+			limit = Math.max(limit, minLimit);
+			grantWaiters();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Admission of one request, released exactly once when it is done.
+	 */
+	public static final class Permit {
+
+		private final AdaptiveConcurrencyLimiter limiter;
+		private final long started = System.nanoTime();
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(AdaptiveConcurrencyLimiter limiter) {
+			this.limiter = limiter;
+		}
+
+		/**
+		 * @param failure {@code null} when the request succeeded, its latency
+		 *                then adjusts the limit
+		 */
+		public void release(Throwable failure) {
+			if (limiter != null && released.compareAndSet(false, true)) {
+				limiter.release(System.nanoTime() - started, failure);
+			}
+		}
+	}
+
+	private static class Waiter {
+
+		private final Condition condition;
+		private boolean granted;
+
+		Waiter(Condition condition) {
+			this.condition = condition;
+		}
+	}
+}
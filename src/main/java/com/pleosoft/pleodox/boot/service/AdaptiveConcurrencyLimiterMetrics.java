@@ -0,0 +1,58 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import org.springframework.util.Assert;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Publishes the admission state to a Micrometer registry as
+ * {@code pleodox.admission.limit}, {@code pleodox.admission.inflight},
+ * {@code pleodox.admission.queued}, the {@code pleodox.admission.rejected}
+ * counter tagged by reason and the {@code pleodox.admission.dropped} counter
+ * of the requests that lowered the limit. micrometer-core is an optional
+ * dependency and has to be on the classpath.
+ */
+public class AdaptiveConcurrencyLimiterMetrics implements MeterBinder {
+
+	private final AdaptiveConcurrencyLimiter limiter;
+
+	public AdaptiveConcurrencyLimiterMetrics(AdaptiveConcurrencyLimiter limiter) {
+		Assert.notNull(limiter, "limiter parameter cannot be empty");
+		this.limiter = limiter;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("pleodox.admission.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+				.description("Current concurrency limit of the document requests").register(registry);
+		Gauge.builder("pleodox.admission.inflight", limiter, AdaptiveConcurrencyLimiter::getInFlight)
+				.description("Admitted document requests in progress").register(registry);
+		Gauge.builder("pleodox.admission.queued", limiter, AdaptiveConcurrencyLimiter::getQueueDepth)
+				.description("Document requests waiting for admission").register(registry);
+		FunctionCounter.builder("pleodox.admission.rejected", limiter, AdaptiveConcurrencyLimiter::getQueueFullCount)
+				.tag("reason", "queue_full").register(registry);
+		FunctionCounter.builder("pleodox.admission.rejected", limiter, AdaptiveConcurrencyLimiter::getDeadlineCount)
+				.tag("reason", "deadline").register(registry);
+		FunctionCounter.builder("pleodox.admission.dropped", limiter, AdaptiveConcurrencyLimiter::getDroppedCount)
+				.register(registry);
+	}
+}
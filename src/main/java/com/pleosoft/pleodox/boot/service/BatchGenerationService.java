@@ -0,0 +1,380 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+import com.pleosoft.pleodox.boot.service.TemplateCache.CachedTemplate;
+import com.pleosoft.pleodox.boot.storage.StorageService;
+
+/**
+ * Renders one docx template for many data records. The template is unzipped
+ * and its placeholders are analysed once, the records are rendered on the
+ * executor and handed out in record order. At most twice the parallelism of
+ * records are held in memory at a time, so the records can come from a
+ * stream of any size. A record which fails is reported and skipped, the batch
+ * goes on.
+ */
+public class BatchGenerationService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchGenerationService.class);
+
+	private final DocumentGenerateService templatingService;
+	private final StorageService storageService;
+	private final TransformationService transformationService;
+
+	private ExecutorService executor;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private TemplateCache templateCache;
+	private DocumentGenerationHandler documentGenerationHandler = new NoopDocumentGenerationHandler();
+	private PdfMergeService pdfMergeService = new PdfMergeService();
+	private DocumentConversionEngine conversionEngine;
+	private ConversionScheduler conversionScheduler;
+
+	public BatchGenerationService(DocumentGenerateService templatingService, StorageService storageService,
+			TransformationService transformationService) {
+		Assert.notNull(templatingService, "templatingService parameter cannot be empty");
+		Assert.notNull(storageService, "storageService parameter cannot be empty");
+		this.templatingService = templatingService;
+		this.storageService = storageService;
+		this.transformationService = transformationService;
+	}
+
+	public BatchResult generate(String templateName, Iterator<DataRoot> records, TemplateOutputFormat format,
+			TemplateOptions options, BatchRecordHandler handler, BatchProgressListener listener) {
+		Assert.notNull(handler, "handler parameter cannot be empty");
+
+		return run(templateName, records, format, options, (index, record, document) -> {
+			try (InputStream is = document.toInputStream()) {
+				handler.handle(index, record, is);
+			} catch (Exception e) {
+				throw new RecordFailedException(e);
+			}
+		}, listener);
+	}
+
+	public BatchResult generate(String templateName, Stream<DataRoot> records, TemplateOutputFormat format,
+			TemplateOptions options, BatchRecordHandler handler, BatchProgressListener listener) {
+		Assert.notNull(records, "records parameter cannot be empty");
+		return generate(templateName, records.iterator(), format, options, handler, listener);
+	}
+
+	/**
+	 * Writes every generated record as an entry of a zip archive to
+	 * {@code os}, which is left open. Docx and pdf entries are stored.
+	 */
+	public BatchResult generateZip(String templateName, Iterator<DataRoot> records, TemplateOutputFormat format,
+			TemplateOptions options, OutputStream os, BatchProgressListener listener) throws IOException {
+		Assert.notNull(os, "os parameter cannot be empty");
+		Assert.notNull(format, "format parameter cannot be empty");
+
+		final String baseName = StringUtils
+				.stripFilenameExtension(StringUtils.getFilename(StringUtils.cleanPath(templateName)));
+		final ZipStreamWriter zip = new ZipStreamWriter(os, false);
+		final BatchResult result = run(templateName, records, format, options,
+				(index, record, document) -> zip.addEntry(baseName + "-" + (index + 1) + format.getExtension(),
+						document, ZipStreamWriter.defaultMethod(format.getExtension())),
+				listener);
+		zip.finish();
+		return result;
+	}
+
+	public BatchResult generateZip(String templateName, Stream<DataRoot> records, TemplateOutputFormat format,
+			TemplateOptions options, OutputStream os, BatchProgressListener listener) throws IOException {
+		Assert.notNull(records, "records parameter cannot be empty");
+		return generateZip(templateName, records.iterator(), format, options, os, listener);
+	}
+
+	/**
+	 * Converts every record to PDF and appends it to one merged document as
+	 * soon as it is ready, the merged document is written to {@code os}, which
+	 * is left open. A record whose PDF cannot be read is reported and left out,
+	 * only a failure writing the merged document aborts the batch.
+	 */
+	public BatchResult generateMergedPdf(String templateName, Iterator<DataRoot> records, TemplateOptions options,
+			OutputStream os, BatchProgressListener listener) throws IOException {
+		Assert.notNull(os, "os parameter cannot be empty");
+
+		try (IncrementalPdfMerger merger = pdfMergeService.open(os)) {
+			final BatchResult result = run(templateName, records, TemplateOutputFormat.PDF, options,
+					(index, record, document) -> {
+						// the merged document is only written by finish, a failure here is the record's
+						try (InputStream is = document.toInputStream()) {
+							merger.append(is);
+						} catch (IOException | RuntimeException e) {
+							throw new RecordFailedException(e);
+						}
+					}, listener);
+
+			if (merger.getDocumentCount() == 0) {
+				throw new TemplateFailedException(new Exception("No record of the batch could be generated"));
+			}
+			merger.finish();
+			return result;
+		}
+	}
+
+	public BatchResult generateMergedPdf(String templateName, Stream<DataRoot> records, TemplateOptions options,
+			OutputStream os, BatchProgressListener listener) throws IOException {
+		Assert.notNull(records, "records parameter cannot be empty");
+		return generateMergedPdf(templateName, records.iterator(), options, os, listener);
+	}
+
+	private BatchResult run(String templateName, Iterator<DataRoot> records, TemplateOutputFormat format,
+			TemplateOptions options, RecordSink sink, BatchProgressListener listener) {
+		Assert.hasText(templateName, "templateName parameter cannot be empty");
+		Assert.notNull(records, "records parameter cannot be empty");
+		Assert.notNull(format, "format parameter cannot be empty");
+
+		final BatchProgressListener progressListener = listener != null ? listener : new BatchProgressListener() {
+		};
+		final BatchResult result = new BatchResult();
+		final ArrayDeque<PendingRecord> pending = new ArrayDeque<>();
+		final int window = executor != null ? parallelism * 2 : 1;
+
+		try {
+			final String cleanTemplatePath = StringUtils.cleanPath(templateName);
+			final CachedTemplate template = loadTemplate(cleanTemplatePath);
+
+			long index = 0;
+			while (records.hasNext() || !pending.isEmpty()) {
+				while (pending.size() < window && records.hasNext()) {
+					pending.add(submit(index++, records.next(), cleanTemplatePath, template, format, options));
+				}
+
+				final PendingRecord next = pending.poll();
+				try {
+					sink.accept(next.index, next.record, next.document.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof CompletionException && cause.getCause() != null) {
+						cause = cause.getCause();
+					}
+					recordFailed(next.index, cause, result, progressListener);
+					continue;
+				} catch (RecordFailedException e) {
+					recordFailed(next.index, e.getCause(), result, progressListener);
+					continue;
+				}
+
+				result.recordSucceeded();
+				progressListener.recordGenerated(next.index, result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(pending);
+			throw new TemplateFailedException(e);
+		} catch (Throwable e) {
+			cancel(pending);
+			throw e instanceof TemplateFailedException ? (TemplateFailedException) e : new TemplateFailedException(e);
+		} finally {
+			result.finish();
+		}
+
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Batch of " + templateName + " generated " + result.getSucceededCount() + " records, "
+					+ result.getFailedCount() + " failed");
+		}
+		return result;
+	}
+
+	private CachedTemplate loadTemplate(String cleanTemplatePath) throws IOException {
+		final String extension = StringUtils.getFilenameExtension(cleanTemplatePath);
+		if (!"DOCX".equalsIgnoreCase(extension) && !"DOTX".equalsIgnoreCase(extension)) {
+			throw new TemplateFailedException(new Exception("Batch generation supports docx templates only"));
+		}
+
+		final Path resource = storageService.loadExistingTemplate(cleanTemplatePath);
+		final CachedTemplate template = templateCache != null ? templateCache.get(resource)
+				: new TemplateCache(1, TemplateCache.DEFAULT_MAX_WEIGHT).get(resource);
+
+		// the placeholders are indexed by the template version for all records
+		templatingService.retrieveFields(template);
+		return template;
+	}
+
+	private PendingRecord submit(long index, DataRoot record, String templateName, CachedTemplate template,
+			TemplateOutputFormat format, TemplateOptions options) {
+		CompletableFuture<DocumentBuffer> document;
+		if (executor != null) {
+			document = CompletableFuture.supplyAsync(() -> {
+				try {
+					return render(record, templateName, template, format, options);
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}, executor);
+		} else {
+			try {
+				document = CompletableFuture.completedFuture(render(record, templateName, template, format, options));
+			} catch (Throwable e) {
+				document = CompletableFuture.failedFuture(e);
+			}
+		}
+		return new PendingRecord(index, record, document);
+	}
+
+	private DocumentBuffer render(DataRoot record, String templateName, CachedTemplate template,
+			TemplateOutputFormat format, TemplateOptions options) throws Exception {
+		Assert.notNull(record, "record cannot be empty");
+
+		final boolean docx = TemplateOutputFormat.DOCX.equals(format);
+		final TemplateOptions recordOptions = new TemplateOptions(options)
+				.addOption("templateVersion", template.getContentHash()).addOption("outputFormat", format)
+				.addOption("conversionEngine", docx ? null : conversionEngine);
+
+		final GenerationTrace trace = new GenerationTrace(documentGenerationHandler, templateName, format);
+		recordOptions.addOption(GenerationTrace.OPTION, trace);
+
+		documentGenerationHandler.beforeDocumentGenerated();
+		try {
+			trace.begin(GenerationPhase.TEMPLATE_LOAD);
+			final WordprocessingMLPackage wordMLPackage = template.newPackage();
+			trace.end(template.getSize());
+
+			DocumentBuffer document = new DocumentBuffer();
+			templatingService.generateWord(wordMLPackage, record, document, recordOptions);
+			if (!docx && !format.equals(recordOptions.getOption("convertedTo"))) {
+				trace.begin(GenerationPhase.CONVERSION);
+				final DocumentBuffer converted;
+				if (conversionScheduler != null) {
+					converted = conversionScheduler.convert(document, format);
+				} else {
+					Assert.notNull(transformationService, "There is no transformation service to convert to " + format);
+					converted = new DocumentBuffer();
+					transformationService.transform(document.toInputStream(), converted, format);
+				}
+				trace.end(converted.size());
+				document = converted;
+			}
+
+			trace.documentGenerated(document.size());
+			documentGenerationHandler.afterDocumentGenerated();
+			return document;
+		} catch (Exception e) {
+			trace.documentFailed(e);
+			documentGenerationHandler.documentGenerationFailed(e);
+			throw e;
+		}
+	}
+
+	private void recordFailed(long index, Throwable cause, BatchResult result, BatchProgressListener listener) {
+		if (LOG.isWarnEnabled()) {
+			LOG.warn("Record " + index + " of the batch failed", cause);
+		}
+		result.recordFailed(index, cause);
+		listener.recordFailed(index, cause, result);
+	}
+
+	private void cancel(ArrayDeque<PendingRecord> pending) {
+		for (PendingRecord record : pending) {
+			record.document.cancel(true);
+		}
+		pending.clear();
+	}
+
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public void setParallelism(int parallelism) {
+		Assert.isTrue(parallelism > 0, "parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	public void setTemplateCache(TemplateCache templateCache) {
+		this.templateCache = templateCache;
+	}
+
+	/**
+	 * Gets the callbacks and the phase timings of every record.
+	 */
+	public void setDocumentGenerationHandler(DocumentGenerationHandler documentGenerationHandler) {
+		Assert.notNull(documentGenerationHandler, "documentGenerationHandler parameter cannot be empty");
+		this.documentGenerationHandler = documentGenerationHandler;
+	}
+
+	public void setPdfMergeService(PdfMergeService pdfMergeService) {
+		Assert.notNull(pdfMergeService, "pdfMergeService parameter cannot be empty");
+		this.pdfMergeService = pdfMergeService;
+	}
+
+	/**
+	 * Engine converting the records when PDF is requested, the office converter
+	 * of the {@link TransformationService} when not set or when it declines.
+	 */
+	public void setConversionEngine(DocumentConversionEngine conversionEngine) {
+		this.conversionEngine = conversionEngine;
+	}
+
+	/**
+	 * Queues the office conversions of the records with the other
+	 * conversions, a record rejected by a full queue fails on its own. Keep
+	 * the parallelism within the queue capacity.
+	 */
+	public void setConversionScheduler(ConversionScheduler conversionScheduler) {
+		this.conversionScheduler = conversionScheduler;
+	}
+
+	private interface RecordSink {
+
+		void accept(long index, DataRoot record, DocumentBuffer document) throws IOException;
+	}
+
+	private static class PendingRecord {
+
+		private final long index;
+		private final DataRoot record;
+		private final CompletableFuture<DocumentBuffer> document;
+
+		PendingRecord(long index, DataRoot record, CompletableFuture<DocumentBuffer> document) {
+			this.index = index;
+			this.record = record;
+			this.document = document;
+		}
+	}
+
+	private static class RecordFailedException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		RecordFailedException(Throwable cause) {
+			super(cause);
+		}
+	}
+}
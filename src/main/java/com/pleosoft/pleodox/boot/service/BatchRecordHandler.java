@@ -0,0 +1,31 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.InputStream;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+
+/**
+ * Receives the documents of a batch in record order. The stream is only valid
+ * during the call, an exception fails the record and not the batch.
+ */
+@FunctionalInterface
+public interface BatchRecordHandler {
+
+	void handle(long index, DataRoot record, InputStream document) throws Exception;
+}
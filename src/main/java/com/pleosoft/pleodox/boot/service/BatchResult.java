@@ -0,0 +1,95 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a batch, updated while it runs. Failed records are kept with
+ * their index and cause.
+ */
+public class BatchResult {
+
+	private final long started = System.nanoTime();
+	private final AtomicLong succeededCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final List<RecordFailure> failures = Collections.synchronizedList(new ArrayList<>());
+	private volatile long finished;
+
+	void recordSucceeded() {
+		succeededCount.incrementAndGet();
+	}
+
+	void recordFailed(long index, Throwable cause) {
+		failedCount.incrementAndGet();
+		failures.add(new RecordFailure(index, cause));
+	}
+
+	void finish() {
+		finished = System.nanoTime();
+	}
+
+	public long getProcessedCount() {
+		return succeededCount.get() + failedCount.get();
+	}
+
+	public long getSucceededCount() {
+		return succeededCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public List<RecordFailure> getFailures() {
+		synchronized (failures) {
+			return new ArrayList<>(failures);
+		}
+	}
+
+	public boolean isFinished() {
+		return finished != 0;
+	}
+
+	public long getElapsedTime(TimeUnit unit) {
+		final long end = finished != 0 ? finished : System.nanoTime();
+		return unit.convert(end - started, TimeUnit.NANOSECONDS);
+	}
+
+	public static class RecordFailure {
+
+		private final long index;
+		private final Throwable cause;
+
+		RecordFailure(long index, Throwable cause) {
+			this.index = index;
+			this.cause = cause;
+		}
+
+		public long getIndex() {
+			return index;
+		}
+
+		public Throwable getCause() {
+			return cause;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+
+/**
+ * Runs {@link TransformationService} conversions of files and of documents held
+ * in memory on a fixed number of workers fed by a bounded queue. Submissions are rejected once the queue is full and
+ * every job fails with a {@link TimeoutException} when it has not finished
+ * within the configured timeout, counted from its submission.
+ */
+public class ConversionScheduler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConversionScheduler.class);
+
+	private final TransformationService transformationService;
+	private final ThreadPoolExecutor executor;
+	private final long timeoutMillis;
+
+	private final LongAdder submittedCount = new LongAdder();
+	private final LongAdder completedCount = new LongAdder();
+	private final LongAdder failedCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder timedOutCount = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final LongAdder totalConversionNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong maxConversionNanos = new AtomicLong();
+
+	public ConversionScheduler(TransformationService transformationService, int workers, int queueCapacity,
+			long timeout, TimeUnit unit) {
+		Assert.notNull(transformationService, "transformationService parameter cannot be empty");
+		Assert.isTrue(workers > 0, "workers must be positive");
+		Assert.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+		Assert.isTrue(timeout > 0, "timeout must be positive");
+
+		this.transformationService = transformationService;
+		this.timeoutMillis = unit.toMillis(timeout);
+		this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), new ConversionThreadFactory(),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	public CompletableFuture<Path> submit(File sourceDocument, TemplateOutputFormat outputFormat) {
+		Assert.notNull(sourceDocument, "sourceDocument parameter cannot be empty");
+		Assert.notNull(outputFormat, "outputFormat parameter cannot be empty");
+
+		return submit(new ConversionJob<Path>(sourceDocument.getName()) {
+
+			@Override
+			Path convert() {
+				return transformationService.transform(sourceDocument, outputFormat);
+			}
+
+			@Override
+			void discard(Path converted) {
+				deleteQuietly(converted);
+			}
+		});
+	}
+
+	/**
+	 * Converts a document held in memory into a new buffer, the caller writes
+	 * it out once the job completed, so a timed out job never writes to the
+	 * caller's stream.
+	 */
+	CompletableFuture<DocumentBuffer> submit(DocumentBuffer sourceDocument, TemplateOutputFormat outputFormat) {
+		Assert.notNull(sourceDocument, "sourceDocument parameter cannot be empty");
+		Assert.notNull(outputFormat, "outputFormat parameter cannot be empty");
+
+		return submit(new ConversionJob<DocumentBuffer>("a document of " + sourceDocument.size() + " bytes") {
+
+			@Override
+			DocumentBuffer convert() {
+				final DocumentBuffer converted = new DocumentBuffer();
+				transformationService.transform(sourceDocument.toInputStream(), converted, outputFormat);
+				return converted;
+			}
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(ConversionJob<T> job) {
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			rejectedCount.increment();
+			throw new RejectedExecutionException("Conversion queue is full (" + executor.getQueue().size()
+					+ " waiting), rejecting " + job.name, e);
+		}
+		submittedCount.increment();
+
+		job.result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((converted, e) -> {
+			if (e instanceof TimeoutException) {
+				timedOutCount.increment();
+				job.interrupt();
+			}
+		});
+		return job.result;
+	}
+
+	public Path convert(File sourceDocument, TemplateOutputFormat outputFormat) {
+		return await(submit(sourceDocument, outputFormat));
+	}
+
+	DocumentBuffer convert(DocumentBuffer sourceDocument, TemplateOutputFormat outputFormat) {
+		return await(submit(sourceDocument, outputFormat));
+	}
+
+	private static <T> T await(CompletableFuture<T> converted) {
+		try {
+			return converted.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public int getWorkerCount() {
+		return executor.getMaximumPoolSize();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getRemainingQueueCapacity() {
+		return executor.getQueue().remainingCapacity();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public long getSubmittedCount() {
+		return submittedCount.sum();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.sum();
+	}
+
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	public long getTimedOutCount() {
+		return timedOutCount.sum();
+	}
+
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(totalWaitNanos.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getTotalConversionTime(TimeUnit unit) {
+		return unit.convert(totalConversionNanos.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxConversionTime(TimeUnit unit) {
+		return unit.convert(maxConversionNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (Exception e) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Failed to delete File '" + path + "'");
+			}
+		}
+	}
+
+	private abstract class ConversionJob<T> implements Runnable {
+
+		private final String name;
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+		private final long submitted = System.nanoTime();
+
+		private Thread worker;
+
+		ConversionJob(String name) {
+			this.name = name;
+		}
+
+		abstract T convert();
+
+		/**
+		 * Drops a conversion nobody waits for any more.
+		 */
+		void discard(T converted) {
+		}
+
+		@Override
+		public void run() {
+			final long started = System.nanoTime();
+			final long waited = started - submitted;
+			totalWaitNanos.add(waited);
+			maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+			// timed out or cancelled while waiting in the queue
+			if (result.isDone()) {
+				return;
+			}
+
+			synchronized (this) {
+				worker = Thread.currentThread();
+			}
+			try {
+				final T converted = convert();
+				if (!result.complete(converted)) {
+					// nobody is waiting for it any more
+					discard(converted);
+				}
+				completedCount.increment();
+			} catch (Throwable e) {
+				failedCount.increment();
+				result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+			} finally {
+				synchronized (this) {
+					worker = null;
+				}
+				// clear an interrupt of a timeout that raced with the completion
+				Thread.interrupted();
+
+				final long took = System.nanoTime() - started;
+				totalConversionNanos.add(took);
+				maxConversionNanos.accumulateAndGet(took, Math::max);
+			}
+		}
+
+		synchronized void interrupt() {
+			if (worker != null) {
+				worker.interrupt();
+			}
+		}
+	}
+
+	private static class ConversionThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "pleodox-conversion-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+
+/**
+ * Writes the data of a {@link DataRoot} as the UTF-8 custom xml document used
+ * for data binding. The elements are the same as the ones jackson's XmlMapper
+ * writes for the data map: lists repeat the element of their key, empty lists
+ * are skipped and null values or empty maps become empty elements.
+ */
+class DataRootXmlWriter {
+
+	static final String ROOT_ELEMENT = "TestXMLNode";
+
+	private final XMLOutputFactory outputFactory;
+
+	DataRootXmlWriter(XMLOutputFactory outputFactory) {
+		this.outputFactory = outputFactory;
+	}
+
+	void write(DataRoot dataroot, OutputStream os) throws IOException {
+		try {
+			final XMLStreamWriter writer = outputFactory.createXMLStreamWriter(os, StandardCharsets.UTF_8.name());
+			writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+			if (dataroot.getXmlns() != null) {
+				writer.writeStartElement("", ROOT_ELEMENT, dataroot.getXmlns());
+				writer.writeDefaultNamespace(dataroot.getXmlns());
+			} else {
+				writer.writeStartElement(ROOT_ELEMENT);
+			}
+
+			writeEntries(writer, dataroot.getData());
+
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			// does not close the output stream
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void writeEntries(XMLStreamWriter writer, Map<?, ?> map) throws XMLStreamException {
+		for (Entry<?, ?> entry : map.entrySet()) {
+			writeValue(writer, String.valueOf(entry.getKey()), entry.getValue());
+		}
+	}
+
+	private void writeValue(XMLStreamWriter writer, String name, Object value) throws XMLStreamException {
+		if (value == null) {
+			writer.writeEmptyElement(name);
+		} else if (value instanceof Collection) {
+			for (Object item : (Collection<?>) value) {
+				writeValue(writer, name, item);
+			}
+		} else if (value instanceof Object[]) {
+			for (Object item : (Object[]) value) {
+				writeValue(writer, name, item);
+			}
+		} else if (value instanceof Map) {
+			final Map<?, ?> map = (Map<?, ?>) value;
+			if (map.isEmpty()) {
+				writer.writeEmptyElement(name);
+			} else {
+				writer.writeStartElement(name);
+				writeEntries(writer, map);
+				writer.writeEndElement();
+			}
+		} else {
+			writer.writeStartElement(name);
+			writer.writeCharacters(toText(value));
+			writer.writeEndElement();
+		}
+	}
+
+	static String toText(Object value) {
+		// dates as timestamps, like jackson does by default
+		if (value instanceof Date) {
+			return String.valueOf(((Date) value).getTime());
+		} else if (value instanceof Calendar) {
+			return String.valueOf(((Calendar) value).getTimeInMillis());
+		} else if (value instanceof Enum) {
+			return ((Enum<?>) value).name();
+		}
+		return value.toString();
+	}
+}
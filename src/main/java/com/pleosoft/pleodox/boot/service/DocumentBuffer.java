@@ -0,0 +1,58 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * {@link ByteArrayOutputStream} which hands out its content without copying it
+ * again, except into a direct buffer.
+ */
+class DocumentBuffer extends ByteArrayOutputStream {
+
+	DocumentBuffer() {
+		this(64 * 1024);
+	}
+
+	DocumentBuffer(int size) {
+		super(size);
+	}
+
+	ByteArrayInputStream toInputStream() {
+		return new ByteArrayInputStream(buf, 0, count);
+	}
+
+	ByteBuffer toByteBuffer(boolean direct) {
+		if (!direct) {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(count);
+		buffer.put(buf, 0, count);
+		buffer.flip();
+		return buffer;
+	}
+
+	long checksum() {
+		final CRC32 crc = new CRC32();
+		crc.update(buf, 0, count);
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.OutputStream;
+
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+
+/**
+ * Converts a filled package to another output format inside the JVM, without
+ * saving it to a file first. Documents it cannot handle go through the
+ * {@link TransformationService}.
+ */
+public interface DocumentConversionEngine {
+
+	public String getName();
+
+	public boolean isConvertible(WordprocessingMLPackage wordMLPackage, TemplateOutputFormat format,
+			TemplateOptions options);
+
+	public void convert(WordprocessingMLPackage wordMLPackage, OutputStream os, TemplateOutputFormat format,
+			TemplateOptions options) throws Exception;
+}
@@ -17,11 +17,14 @@
 package com.pleosoft.pleodox.boot.service;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -29,44 +32,61 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.tuple.Pair;
 import org.docx4j.Docx4J;
 import org.docx4j.model.datastorage.CustomXmlDataStorage;
 import org.docx4j.model.datastorage.CustomXmlDataStoragePartSelector;
 import org.docx4j.model.fields.FieldUpdater;
 import org.docx4j.model.fields.merge.DataFieldName;
-import org.docx4j.model.fields.merge.MailMerger.OutputField;
 import org.docx4j.openpackaging.contenttype.ContentTypeManager;
 import org.docx4j.openpackaging.contenttype.ContentTypes;
 import org.docx4j.openpackaging.exceptions.Docx4JException;
-import org.docx4j.openpackaging.packages.ProtectDocument;
+import org.docx4j.openpackaging.io3.stores.PartStore;
 import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
 import org.docx4j.openpackaging.parts.CustomXmlDataStoragePart;
 import org.docx4j.openpackaging.parts.CustomXmlPart;
 import org.docx4j.openpackaging.parts.DocPropsCustomPart;
 import org.docx4j.wml.STDocProtect;
-import org.springframework.integration.dsl.Transformers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.integration.transformer.ObjectToMapTransformer;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.support.GenericMessage;
-import org.springframework.util.ObjectUtils;
-import org.springframework.util.StringUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.pleosoft.pleodox.boot.data.DataRoot;
 import com.pleosoft.pleodox.boot.data.MultivalueJsonNodeDeserializer;
 import com.pleosoft.pleodox.boot.data.PlaceholdersData;
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+import com.pleosoft.pleodox.boot.service.TemplateCache.CachedTemplate;
 
 public class DocumentGenerateService {
 
-	private static final String UNKNOWN_STRING = "-";
+	private static final Logger LOG = LoggerFactory.getLogger(DocumentGenerateService.class);
+
+	public static final int DEFAULT_MAX_TEMPLATE_VERSIONS = 1000;
 
 	private final XmlMapper xmlMapper;
 	private final ObjectToMapTransformer transformer;
+	private final DataRootXmlWriter dataRootXmlWriter;
+	private final MailMergeEngine mailMergeEngine = new MailMergeEngine();
+
+	private int maxTemplateVersions = DEFAULT_MAX_TEMPLATE_VERSIONS;
+
+	// template content hash -> immutable placeholders of that template version, the least recently used go first
+	private final VersionIndex<PlaceholdersData> placeholdersIndex = new VersionIndex<>();
+	private final VersionIndex<PlaceholderPathIndex> pathIndexes = new VersionIndex<>();
+	private final VersionIndex<TemplateProfile> profiles = new VersionIndex<>();
+
+	private DocumentProtectionService protectionService = new DocumentProtectionService();
 
 	public DocumentGenerateService() {
 		this.xmlMapper = new XmlMapper();
@@ -74,30 +94,20 @@ public class DocumentGenerateService {
 		xmlMapper.registerModule(
 				new SimpleModule().addDeserializer(JsonNode.class, new MultivalueJsonNodeDeserializer()));
 
+		dataRootXmlWriter = new DataRootXmlWriter(xmlMapper.getFactory().getXMLOutputFactory());
+
 		transformer = new ObjectToMapTransformer();
 		transformer.setShouldFlattenKeys(false);
 	}
 
-	public InputStream getDataRootInputStream(DataRoot dataroot) throws JsonProcessingException {
-		return new ByteArrayInputStream(getDataRootAsString(dataroot).getBytes());
+	public InputStream getDataRootInputStream(DataRoot dataroot) throws IOException {
+		final DocumentBuffer buffer = new DocumentBuffer(8 * 1024);
+		writeDataRoot(dataroot, buffer);
+		return buffer.toInputStream();
 	}
 
-	// TODO find a better way to use jackson (tried many things but it does
-	// not work as we need in this case)
-	// maybe use a regexp instead of substings?
-	private String getDataRootAsString(DataRoot dataroot) throws JsonProcessingException {
-		Map<String, Object> data = dataroot.getData();
-		StringBuilder stringBuilder = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?><TestXMLNode xmlns=\"")
-				.append(dataroot.getXmlns()).append("\">");
-
-		if (!data.isEmpty()) {
-			String val = xmlMapper.writer().writeValueAsString(data);
-			int max = val.length() - 10;
-			stringBuilder.append(val.substring(9, max));
-		}
-
-		stringBuilder.append("</TestXMLNode>");
-		return stringBuilder.toString();
+	public void writeDataRoot(DataRoot dataroot, OutputStream os) throws IOException {
+		dataRootXmlWriter.write(dataroot, os);
 	}
 
 	protected JsonNode getPleodoxCustomXmlPart(WordprocessingMLPackage wordMLPackage) {
@@ -126,120 +136,151 @@ public class DocumentGenerateService {
 
 	protected void generateWord(WordprocessingMLPackage wordMLPackage, DataRoot dataroot, OutputStream os,
 			Boolean readOnly, String protectionPassword) throws IOException, Docx4JException {
+		generateWord(wordMLPackage, dataroot, os, new TemplateOptions().addOption("readOnly", readOnly)
+				.addOption("protectionPass", protectionPassword));
+	}
 
-		dataroot.setXmlns("PLEODOX");
+	protected void generateWord(WordprocessingMLPackage wordMLPackage, DataRoot request, OutputStream os,
+			TemplateOptions options) throws IOException, Docx4JException {
 
-		PlaceholdersData holderData = retrieveFields(wordMLPackage);
-		Set<String> templateKeys = holderData.getKeys();
+		final Boolean readOnly = (Boolean) options.getOption("readOnly");
+		final String protectionPassword = (String) options.getOption("protectionPass");
+		final String templateVersion = (String) options.getOption("templateVersion");
+		final GenerationTrace trace = GenerationTrace.from(options);
 
-		Map<String, Object> data = dataroot.getData();
-		PlaceholdersData newData = mapToPlaceHoldersData(null, data);
-		Set<String> newKeys = newData.getKeys();
-		newKeys.retainAll(templateKeys);
+		trace.begin(GenerationPhase.FIELD_RETRIEVAL);
+		final PlaceholderPathIndex pathIndex = templateVersion != null
+				? retrievePathIndex(wordMLPackage, templateVersion)
+				: new PlaceholderPathIndex(retrieveFields(wordMLPackage));
 
-		// List<Map<DataFieldName, String>> fields = new ArrayList<Map<DataFieldName,
-		// String>>();
+		// the defaults are written into the data, the request may be shared by concurrent renders
+		final Map<String, Object> data = copyData(request.getData());
+		final Map<DataFieldName, String> items = new HashMap<>();
+		final Map<String, String> properties = new HashMap<>();
+		pathIndex.resolve(data, items, properties);
+		final TemplateProfile profile = retrieveProfile(wordMLPackage, templateVersion, options);
+		trace.end();
 
-		for (String templateKey : templateKeys) {
-			Map<String, Object> tmpMap = data;
-			String[] keys = StringUtils.delimitedListToStringArray(templateKey, ".");
-			for (String k : keys) {
-				Object object = tmpMap.get(k);
-				if (object instanceof Map) {
-					tmpMap = (Map<String, Object>) object;
-				}
+		final DataRoot dataroot = new DataRoot();
+		dataroot.setXmlns("PLEODOX");
+		dataroot.putAll(data);
+
+		if (profile.needsDocProperties()) {
+			DocPropsCustomPart docPropsCustomPart = wordMLPackage.getDocPropsCustomPart();
+			if (docPropsCustomPart == null) {
+				wordMLPackage.addDocPropsCustomPart();
+				docPropsCustomPart = wordMLPackage.getDocPropsCustomPart();
 			}
 
-			if (!newKeys.contains(templateKey)) {
-				Set<String> tableColumns = holderData.getTableColumns(templateKey);
-				if (tableColumns != null) {
-					HashMap<String, String> tableEntry = new HashMap<>();
-					for (String column : tableColumns) {
-						tableEntry.put(column, UNKNOWN_STRING);
-					}
-					tmpMap.put(keys[keys.length - 1], tableEntry);
-				} else {
-					tmpMap.put(keys[keys.length - 1], UNKNOWN_STRING);
-				}
-			} else {
-				Object value = tmpMap.get(keys[keys.length - 1]);
-				if (ObjectUtils.isEmpty(value)) {
-					Set<String> tableColumns = holderData.getTableColumns(templateKey);
-					if (tableColumns != null) {
-						HashMap<String, String> tableEntry = new HashMap<>();
-						for (String column : tableColumns) {
-							tableEntry.put(column, UNKNOWN_STRING);
-						}
-						tmpMap.put(keys[keys.length - 1], tableEntry);
-						// items.put(new DataFieldName(keys[keys.length - 1]), "2015");
-					} else {
-						tmpMap.put(keys[keys.length - 1], UNKNOWN_STRING);
-					}
+			if (docPropsCustomPart != null) {
+				for (Entry<String, String> property : properties.entrySet()) {
+					docPropsCustomPart.setProperty(property.getKey(), property.getValue());
 				}
 			}
 		}
 
-		ObjectToMapTransformer mapTransformer = Transformers.toMap(true);
-		Message<Map<?, ?>> message = new GenericMessage<>(dataroot.getData());
-		Map<String, String> payload = (Map<String, String>) mapTransformer.transform(message).getPayload();
-
-		DocPropsCustomPart docPropsCustomPart = wordMLPackage.getDocPropsCustomPart();
-		if (docPropsCustomPart == null) {
-			wordMLPackage.addDocPropsCustomPart();
-			docPropsCustomPart = wordMLPackage.getDocPropsCustomPart();
-		}
-
-		// org.docx4j.docProps.custom.ObjectFactory factory = new
-		// org.docx4j.docProps.custom.ObjectFactory();
-
-		Map<DataFieldName, String> items = new HashMap<>();
-		Set<Entry<String, String>> entrySet = payload.entrySet();
-		for (Entry<String, String> entry : entrySet) {
-			items.put(new DataFieldName(entry.getKey()), entry.getValue());
-
-			if (docPropsCustomPart != null && !entry.getKey().contains(".")) {
-//				org.docx4j.docProps.custom.Properties.Property newProp = factory.createPropertiesProperty();
-//				newProp.setName(entry.getKey());
-//				newProp.setFmtid(DocPropsCustomPart.fmtidValLpwstr); // Magic string
-//				newProp.setPid(customProps.getNextId());
-//				newProp.setLpwstr(entry.getValue());
-//				docProperties.add(newProp);
-
-				docPropsCustomPart.setProperty(entry.getKey(), entry.getValue());
+		if (!items.isEmpty()) {
+			if (profile.needsMailMerge()) {
+				trace.begin(GenerationPhase.MAIL_MERGE);
+				mailMergeEngine.merge(wordMLPackage, items, options);
+				trace.end();
 			}
-		}
 
-		// TODO if variables, if fields, if custom xmlpart
-		if (!items.isEmpty()) {
-			org.docx4j.model.fields.merge.MailMerger.setMERGEFIELDInOutput(OutputField.REMOVED);
-			org.docx4j.model.fields.merge.MailMerger.performMerge(wordMLPackage, items, true);
-			
-			FieldUpdater f1 = new FieldUpdater(wordMLPackage);
-			f1.update(true);
+			if (profile.needsFieldUpdate()) {
+				trace.begin(GenerationPhase.FIELD_UPDATE);
+				FieldUpdater f1 = new FieldUpdater(wordMLPackage);
+				f1.update(true);
+				trace.end();
+			}
 		}
 
-		if (!templateKeys.isEmpty()) {
+		if (!pathIndex.isEmpty() && profile.needsBinding()) {
+			trace.begin(GenerationPhase.XML_BIND);
+			final PartStore templateStore = wordMLPackage.getSourcePartStore();
 			try (InputStream xmlStreamTmp = getDataRootInputStream(dataroot)) {
 				Docx4J.bind(wordMLPackage, xmlStreamTmp,
 						Docx4J.FLAG_BIND_INSERT_XML | Docx4J.FLAG_BIND_BIND_XML | Docx4J.FLAG_BIND_REMOVE_SDT);
 			}
+			if (templateStore instanceof TemplatePartStore && wordMLPackage.getSourcePartStore() != templateStore) {
+				// the binding reloaded the package, keep the raw copy of the parts it left untouched
+				wordMLPackage.setSourcePartStore(
+						((TemplatePartStore) templateStore).reloaded(wordMLPackage.getSourcePartStore()));
+			}
+			trace.end();
 		}
 		
 		if (Boolean.TRUE.equals(readOnly)) {
-			final ProtectDocument pd = new ProtectDocument(wordMLPackage);
-			pd.restrictEditing(STDocProtect.READ_ONLY, protectionPassword);
+			protectionService.protect(wordMLPackage, STDocProtect.READ_ONLY, protectionPassword);
+		}
+
+		final TemplateOutputFormat outputFormat = (TemplateOutputFormat) options.getOption("outputFormat");
+		final DocumentConversionEngine conversionEngine = (DocumentConversionEngine) options
+				.getOption("conversionEngine");
+		if (conversionEngine != null && outputFormat != null && !TemplateOutputFormat.DOCX.equals(outputFormat)
+				&& conversionEngine.isConvertible(wordMLPackage, outputFormat, options)
+				&& convertWord(wordMLPackage, os, outputFormat, conversionEngine, options)) {
+			return;
 		}
 
 		try {
+			trace.begin(GenerationPhase.SAVE);
 			ContentTypeManager ctm = wordMLPackage.getContentTypeManager();
 			ctm.addOverrideContentType(new URI("/word/document.xml"), ContentTypes.WORDPROCESSINGML_DOCUMENT);
-			Docx4J.save(wordMLPackage, os, Docx4J.FLAG_NONE);
+			final CountingOutputStream counting = new CountingOutputStream(os);
+			Docx4J.save(wordMLPackage, counting, Docx4J.FLAG_NONE);
+			trace.end(counting.getByteCount());
 		} catch (URISyntaxException e) {
 			throw new IOException(e);
 		}
 
 	}
 
+	private boolean convertWord(WordprocessingMLPackage wordMLPackage, OutputStream os,
+			TemplateOutputFormat outputFormat, DocumentConversionEngine conversionEngine, TemplateOptions options)
+			throws IOException {
+		// nothing is written before the conversion succeeded, the docx is saved instead otherwise
+		final GenerationTrace trace = GenerationTrace.from(options);
+		final ByteArrayOutputStream converted = new ByteArrayOutputStream();
+		try {
+			trace.begin(GenerationPhase.CONVERSION);
+			conversionEngine.convert(wordMLPackage, converted, outputFormat, options);
+		} catch (Exception e) {
+			trace.fail(e);
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Conversion engine '" + conversionEngine.getName() + "' failed, falling back to "
+						+ TemplateOutputFormat.DOCX, e);
+			}
+			return false;
+		}
+
+		converted.writeTo(os);
+		trace.end(converted.size());
+		options.addOption("convertedTo", outputFormat);
+		return true;
+	}
+
+	private static Map<String, Object> copyData(Map<String, Object> map) {
+		Map<String, Object> copy = new HashMap<>();
+		for (Entry<String, Object> entry : map.entrySet()) {
+			copy.put(entry.getKey(), copyData(entry.getValue()));
+		}
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object copyData(Object value) {
+		if (value instanceof Map) {
+			return copyData((Map<String, Object>) value);
+		} else if (value instanceof List) {
+			List<Object> copy = new ArrayList<>(((List<?>) value).size());
+			for (Object item : (List<?>) value) {
+				copy.add(copyData(item));
+			}
+			return copy;
+		}
+		return value;
+	}
+
 	@SuppressWarnings("unchecked")
 	public PlaceholdersData jonNodeToPlaceholdersData(JsonNode readTree) {
 
@@ -291,12 +332,106 @@ public class DocumentGenerateService {
 
 	public PlaceholdersData retrieveFields(InputStream is) throws IOException {
 		try {
-			return retrieveFields(Docx4J.load(is));
+			final byte[] template = is.readAllBytes();
+			final String templateVersion = DigestUtils.md5DigestAsHex(template);
+
+			PlaceholdersData placeholdersData = placeholdersIndex.get(templateVersion);
+			if (placeholdersData == null) {
+				placeholdersData = indexFields(templateVersion,
+						retrieveFields(Docx4J.load(new ByteArrayInputStream(template))));
+			}
+			return placeholdersData.mutableCopy();
 		} catch (Throwable e) {
 			return new PlaceholdersData();
 		}
 	}
 
+	public PlaceholdersData retrieveFields(CachedTemplate template) throws IOException {
+		PlaceholdersData placeholdersData = placeholdersIndex.get(template.getContentHash());
+		if (placeholdersData == null) {
+			try {
+				placeholdersData = indexFields(template.getContentHash(), retrieveFields(template.newPackage()));
+			} catch (Docx4JException e) {
+				placeholdersData = indexFields(template.getContentHash(), new PlaceholdersData());
+			}
+		}
+		return placeholdersData;
+	}
+
+	public PlaceholdersData retrieveFields(WordprocessingMLPackage wordMLPackage, String templateVersion)
+			throws IOException {
+		PlaceholdersData placeholdersData = placeholdersIndex.get(templateVersion);
+		if (placeholdersData == null) {
+			placeholdersData = indexFields(templateVersion, retrieveFields(wordMLPackage));
+		}
+		return placeholdersData;
+	}
+
+	public void evictFields(String templateVersion) {
+		placeholdersIndex.remove(templateVersion);
+		pathIndexes.remove(templateVersion);
+		profiles.remove(templateVersion);
+	}
+
+	/**
+	 * How many template versions keep their placeholders, path index and
+	 * profile, the least recently used are dropped past it and analysed again
+	 * when they come back.
+	 */
+	public void setMaxTemplateVersions(int maxTemplateVersions) {
+		Assert.isTrue(maxTemplateVersions > 0, "maxTemplateVersions must be positive");
+		this.maxTemplateVersions = maxTemplateVersions;
+	}
+
+	public DocumentProtectionService getDocumentProtectionService() {
+		return protectionService;
+	}
+
+	public void setDocumentProtectionService(DocumentProtectionService protectionService) {
+		Assert.notNull(protectionService, "protectionService parameter cannot be empty");
+		this.protectionService = protectionService;
+	}
+
+	private PlaceholderPathIndex retrievePathIndex(WordprocessingMLPackage wordMLPackage, String templateVersion)
+			throws IOException {
+		PlaceholderPathIndex pathIndex = pathIndexes.get(templateVersion);
+		if (pathIndex == null) {
+			pathIndex = new PlaceholderPathIndex(retrieveFields(wordMLPackage, templateVersion));
+			final PlaceholderPathIndex previous = pathIndexes.putIfAbsent(templateVersion, pathIndex);
+			if (previous != null) {
+				pathIndex = previous;
+			}
+		}
+		return pathIndex;
+	}
+
+	/**
+	 * Without a template version the template is not analysed, every phase
+	 * runs.
+	 */
+	private TemplateProfile retrieveProfile(WordprocessingMLPackage wordMLPackage, String templateVersion,
+			TemplateOptions options) {
+		if (templateVersion == null || TemplateProfile.isFullPipeline(options)) {
+			return TemplateProfile.FULL;
+		}
+		TemplateProfile profile = profiles.get(templateVersion);
+		if (profile == null) {
+			// analysed without a lock, a concurrent render may do the same
+			profile = TemplateProfile.analyse(wordMLPackage);
+			final TemplateProfile previous = profiles.putIfAbsent(templateVersion, profile);
+			if (previous != null) {
+				profile = previous;
+			}
+		}
+		return profile;
+	}
+
+	private PlaceholdersData indexFields(String templateVersion, PlaceholdersData placeholdersData) {
+		final PlaceholdersData immutable = placeholdersData.immutableCopy();
+		final PlaceholdersData previous = placeholdersIndex.putIfAbsent(templateVersion, immutable);
+		return previous != null ? previous : immutable;
+	}
+
 	public PlaceholdersData retrieveFields(WordprocessingMLPackage wordMLPackage) throws IOException {
 		try {
 			JsonNode node = getPleodoxCustomXmlPart(wordMLPackage);
@@ -305,4 +440,69 @@ public class DocumentGenerateService {
 			return new PlaceholdersData();
 		}
 	}
+
+	/**
+	 * Concurrent index of one kind of per template version data. A lookup only
+	 * stamps its entry, the least recently used versions are evicted when an
+	 * insert goes past {@code maxTemplateVersions}.
+	 */
+	private class VersionIndex<V> {
+
+		private final ConcurrentHashMap<String, Versioned<V>> entries = new ConcurrentHashMap<>();
+
+		V get(String templateVersion) {
+			final Versioned<V> entry = entries.get(templateVersion);
+			if (entry == null) {
+				return null;
+			}
+			entry.lastAccess = System.nanoTime();
+			return entry.value;
+		}
+
+		/**
+		 * @return the value already indexed, {@code null} if this one was added
+		 */
+		V putIfAbsent(String templateVersion, V value) {
+			final Versioned<V> previous = entries.putIfAbsent(templateVersion, new Versioned<>(value));
+			if (previous != null) {
+				previous.lastAccess = System.nanoTime();
+				return previous.value;
+			}
+			if (entries.size() > maxTemplateVersions) {
+				evict();
+			}
+			return null;
+		}
+
+		void remove(String templateVersion) {
+			entries.remove(templateVersion);
+		}
+
+		private synchronized void evict() {
+			final int excess = entries.size() - maxTemplateVersions;
+			if (excess <= 0) {
+				return;
+			}
+
+			// the access times are copied, they change while sorting
+			final List<Pair<String, Long>> accesses = new ArrayList<>(entries.size());
+			for (Entry<String, Versioned<V>> entry : entries.entrySet()) {
+				accesses.add(Pair.of(entry.getKey(), entry.getValue().lastAccess));
+			}
+			accesses.sort(Comparator.comparingLong(Pair::getRight));
+			for (int i = 0; i < excess && i < accesses.size(); i++) {
+				entries.remove(accesses.get(i).getLeft());
+			}
+		}
+	}
+
+	private static class Versioned<V> {
+
+		private final V value;
+		private volatile long lastAccess = System.nanoTime();
+
+		Versioned(V value) {
+			this.value = value;
+		}
+	}
 }
@@ -22,4 +22,16 @@ public interface DocumentGenerationHandler {
 
 	void afterDocumentGenerated();;
 
+	/**
+	 * Called instead of {@link #afterDocumentGenerated()} when a document
+	 * failed.
+	 */
+	default void documentGenerationFailed(Throwable cause) {
+	}
+
+	/**
+	 * Called for every finished phase of a generation, failed ones included.
+	 */
+	default void phaseCompleted(GenerationEvent event) {
+	}
 }
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.docx4j.openpackaging.exceptions.Docx4JException;
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.docx4j.openpackaging.parts.DocPropsExtendedPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.DocumentSettingsPart;
+import org.docx4j.org.apache.poi.poifs.crypt.CryptoFunctions;
+import org.docx4j.org.apache.poi.poifs.crypt.HashAlgorithm;
+import org.docx4j.wml.CTDocProtect;
+import org.docx4j.wml.STAlgClass;
+import org.docx4j.wml.STAlgType;
+import org.docx4j.wml.STCryptProv;
+import org.docx4j.wml.STDocProtect;
+import org.springframework.util.Assert;
+
+/**
+ * Restricts the editing of documents like docx4j's
+ * {@code ProtectDocument.restrictEditing}, with the SHA-512 hash of the
+ * password and its salt derived once per password and reused until they
+ * expire. The spin count makes a derivation cost tens of milliseconds, a
+ * bundle protected with one password pays it once. The cache is kept in memory
+ * only and keyed by a hash of the password with a random secret of this
+ * instance, the passwords themselves are not kept. Documents protected with
+ * the same cached entry share the salt.
+ */
+public class DocumentProtectionService {
+
+	public static final int SPIN_COUNT = 100000;
+
+	// the SHA-512 algorithm id of the docProtect element, as docx4j writes it
+	private static final BigInteger SHA512_SID = BigInteger.valueOf(14);
+
+	private final SecureRandom random = new SecureRandom();
+	private final byte[] secret = new byte[32];
+	private final Map<String, ProtectionHash> hashes = new ConcurrentHashMap<>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	private Duration timeToLive = Duration.ofMinutes(10);
+	private int maxEntries = 1000;
+
+	public DocumentProtectionService() {
+		random.nextBytes(secret);
+	}
+
+	/**
+	 * Enforces the {@code edit} restriction on the package, with the password
+	 * if one is given.
+	 */
+	public void protect(WordprocessingMLPackage wordMLPackage, STDocProtect edit, String password)
+			throws Docx4JException {
+		Assert.notNull(wordMLPackage, "wordMLPackage parameter cannot be empty");
+		Assert.notNull(edit, "edit parameter cannot be empty");
+
+		final DocumentSettingsPart settingsPart = wordMLPackage.getMainDocumentPart().getDocumentSettingsPart(true);
+		// the enforcement, the restriction and the tracked revisions, without a hash
+		settingsPart.protectRestrictEditing(edit, null, null);
+
+		if (password != null) {
+			final ProtectionHash protectionHash = hash(password);
+			final CTDocProtect protection = settingsPart.getJaxbElement().getDocumentProtection();
+			protection.setCryptProviderType(STCryptProv.RSA_AES);
+			protection.setCryptAlgorithmClass(STAlgClass.HASH);
+			protection.setCryptAlgorithmType(STAlgType.TYPE_ANY);
+			protection.setCryptAlgorithmSid(SHA512_SID);
+			protection.setCryptSpinCount(BigInteger.valueOf(SPIN_COUNT));
+			protection.setSalt(protectionHash.salt.clone());
+			protection.setHash(protectionHash.hash.clone());
+		}
+
+		DocPropsExtendedPart extendedPart = wordMLPackage.getDocPropsExtendedPart();
+		if (extendedPart == null) {
+			wordMLPackage.addDocPropsExtendedPart();
+			extendedPart = wordMLPackage.getDocPropsExtendedPart();
+		}
+		extendedPart.setDocSecurity(STDocProtect.READ_ONLY.equals(edit) || STDocProtect.COMMENTS.equals(edit) ? 8 : 0);
+	}
+
+	private ProtectionHash hash(String password) {
+		final String key = key(password);
+		final long now = System.nanoTime();
+
+		ProtectionHash protectionHash = hashes.get(key);
+		if (protectionHash != null && !protectionHash.isExpired(now)) {
+			hitCount.incrementAndGet();
+			return protectionHash;
+		}
+
+		// concurrent protections with the same password derive it once
+		protectionHash = hashes.compute(key, (k, current) -> {
+			if (current != null && !current.isExpired(now)) {
+				hitCount.incrementAndGet();
+				return current;
+			}
+			missCount.incrementAndGet();
+			return derive(password, now);
+		});
+
+		if (hashes.size() > maxEntries) {
+			evict(now);
+		}
+		return protectionHash;
+	}
+
+	private ProtectionHash derive(String password, long now) {
+		final byte[] salt = new byte[16];
+		random.nextBytes(salt);
+		// the legacy xor hash of the password is the input, as Word does it
+		final byte[] hash = CryptoFunctions.hashPassword(CryptoFunctions.xorHashPasswordReversed(password),
+				HashAlgorithm.sha512, salt, SPIN_COUNT, false);
+		return new ProtectionHash(salt, hash, now + timeToLive.toNanos());
+	}
+
+	private void evict(long now) {
+		hashes.values().removeIf(protectionHash -> protectionHash.isExpired(now));
+		final Iterator<String> keys = hashes.keySet().iterator();
+		while (hashes.size() > maxEntries && keys.hasNext()) {
+			keys.next();
+			keys.remove();
+		}
+	}
+
+	private String key(String password) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(secret);
+			return Base64.getEncoder().encodeToString(digest.digest(password.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void invalidateAll() {
+		hashes.clear();
+	}
+
+	public int getSize() {
+		return hashes.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * How long a derived hash is reused, a zero duration derives it for every
+	 * document.
+	 */
+	public void setTimeToLive(Duration timeToLive) {
+		Assert.notNull(timeToLive, "timeToLive parameter cannot be empty");
+		Assert.isTrue(!timeToLive.isNegative(), "timeToLive parameter cannot be negative");
+		this.timeToLive = timeToLive;
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+		this.maxEntries = maxEntries;
+	}
+
+	private static class ProtectionHash {
+
+		private final byte[] salt;
+		private final byte[] hash;
+		private final long expires;
+
+		ProtectionHash(byte[] salt, byte[] hash, long expires) {
+			this.salt = salt;
+			this.hash = hash;
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now) {
+			return now - expires >= 0;
+		}
+	}
+}
@@ -18,6 +18,7 @@ package com.pleosoft.pleodox.boot.service;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
 
 import org.docx4j.Docx4J;
 import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
@@ -25,22 +26,41 @@ import org.springframework.util.StringUtils;
 
 import com.pleosoft.pleodox.boot.data.DataRoot;
 import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.service.TemplateCache.CachedTemplate;
 
 public class DocxGenerator implements DocumentGenerator {
 
 	private final DocumentGenerateService templatingService;
+	private final TemplateCache templateCache;
 
 	public DocxGenerator(DocumentGenerateService templatingService) {
+		this(templatingService, null);
+	}
+
+	public DocxGenerator(DocumentGenerateService templatingService, TemplateCache templateCache) {
 		this.templatingService = templatingService;
+		this.templateCache = templateCache;
 	}
 
 	@Override
 	public void generate(InputStream templateStream, OutputStream os, DataRoot dataroot, TemplateOptions options)
 			throws Exception {
-		WordprocessingMLPackage wordMLPackage = Docx4J.load(templateStream);
+		Path templatePath = (Path) options.getOption("templatePath");
+		GenerationTrace trace = GenerationTrace.from(options);
+
+		trace.begin(GenerationPhase.TEMPLATE_LOAD);
+		WordprocessingMLPackage wordMLPackage = null;
+		if (templateCache != null && templatePath != null) {
+			CachedTemplate template = templateCache.get(templatePath);
+			options.addOption("templateVersion", template.getContentHash());
+			wordMLPackage = template.newPackage();
+			trace.end(template.getSize());
+		} else {
+			wordMLPackage = Docx4J.load(templateStream);
+			trace.end();
+		}
 
-		templatingService.generateWord(wordMLPackage, dataroot, os,
-				(Boolean) options.getOption("readOnly"), (String) options.getOption("protectionPass"));
+		templatingService.generateWord(wordMLPackage, dataroot, os, options);
 	}
 	
 	@Override
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.OutputStream;
+
+import org.docx4j.Docx4J;
+import org.docx4j.convert.out.FOSettings;
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.docx4j.openpackaging.parts.Part;
+import org.docx4j.openpackaging.parts.DrawingML.Chart;
+import org.docx4j.openpackaging.parts.DrawingML.DiagramDataPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.EmbeddedPackagePart;
+import org.docx4j.openpackaging.parts.WordprocessingML.OleObjectBinaryPart;
+import org.springframework.util.ClassUtils;
+
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+
+/**
+ * Renders PDF with the docx4j XSL-FO export and Apache FOP. Needs
+ * docx4j-export-fo on the classpath, charts, SmartArt and embedded objects are
+ * left to the office converter.
+ */
+public class FoPdfConversionEngine implements DocumentConversionEngine {
+
+	public static final String NAME = "fo";
+
+	private static final boolean EXPORT_FO_PRESENT = ClassUtils.isPresent(
+			"org.docx4j.convert.out.fo.FOExporterVisitor", FoPdfConversionEngine.class.getClassLoader());
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isConvertible(WordprocessingMLPackage wordMLPackage, TemplateOutputFormat format,
+			TemplateOptions options) {
+		if (!EXPORT_FO_PRESENT || !TemplateOutputFormat.PDF.equals(format)) {
+			return false;
+		}
+
+		for (Part part : wordMLPackage.getParts().getParts().values()) {
+			if (part instanceof Chart || part instanceof DiagramDataPart || part instanceof EmbeddedPackagePart
+					|| part instanceof OleObjectBinaryPart) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void convert(WordprocessingMLPackage wordMLPackage, OutputStream os, TemplateOutputFormat format,
+			TemplateOptions options) throws Exception {
+		FOSettings settings = Docx4J.createFOSettings();
+		settings.setWmlPackage(wordMLPackage);
+		settings.setApacheFopMime(Docx4J.MIME_PDF);
+
+		Docx4J.toFO(settings, os, Docx4J.FLAG_EXPORT_PREFER_NONXSL);
+	}
+}
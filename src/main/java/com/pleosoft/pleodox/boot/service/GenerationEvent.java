@@ -0,0 +1,79 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.concurrent.TimeUnit;
+
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+
+/**
+ * A finished phase of a generation. The template name is {@code null} for
+ * phases bundling several templates, the size is -1 when it is not known.
+ */
+public class GenerationEvent {
+
+	private final GenerationPhase phase;
+	private final String templateName;
+	private final TemplateOutputFormat outputFormat;
+	private final long durationNanos;
+	private final long bytes;
+	private final Throwable failure;
+
+	public GenerationEvent(GenerationPhase phase, String templateName, TemplateOutputFormat outputFormat,
+			long durationNanos, long bytes, Throwable failure) {
+		this.phase = phase;
+		this.templateName = templateName;
+		this.outputFormat = outputFormat;
+		this.durationNanos = durationNanos;
+		this.bytes = bytes;
+		this.failure = failure;
+	}
+
+	public GenerationPhase getPhase() {
+		return phase;
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+
+	public TemplateOutputFormat getOutputFormat() {
+		return outputFormat;
+	}
+
+	public long getDuration(TimeUnit unit) {
+		return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public boolean isSuccessful() {
+		return failure == null;
+	}
+
+	@Override
+	public String toString() {
+		return phase + " " + (templateName != null ? templateName : "") + " " + outputFormat + " "
+				+ getDuration(TimeUnit.MICROSECONDS) + "us " + bytes + "B" + (failure != null ? " " + failure : "");
+	}
+}
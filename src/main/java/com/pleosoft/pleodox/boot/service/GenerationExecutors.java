@@ -0,0 +1,94 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Executors for the asynchronous generation. The project is built for Java
+ * 11, the virtual threads of a recent JDK are looked up by reflection.
+ */
+public final class GenerationExecutors {
+
+	private static final Logger LOG = LoggerFactory.getLogger(GenerationExecutors.class);
+
+	private GenerationExecutors() {
+	}
+
+	/**
+	 * A virtual thread per task when the JDK has them, a cached pool of daemon
+	 * threads otherwise. Either way a waiting job does not hold a platform
+	 * thread of the caller.
+	 */
+	public static ExecutorService newAsyncExecutor() {
+		final ExecutorService virtual = newVirtualThreadExecutor();
+		return virtual != null ? virtual : Executors.newCachedThreadPool(daemonThreads("pleodox-async"));
+	}
+
+	/**
+	 * Bounded pool for the CPU heavy docx4j work, one thread per processor.
+	 */
+	public static ExecutorService newRenderExecutor() {
+		return newRenderExecutor(Runtime.getRuntime().availableProcessors());
+	}
+
+	public static ExecutorService newRenderExecutor(int threads) {
+		Assert.isTrue(threads > 0, "threads parameter must be positive");
+		return Executors.newFixedThreadPool(threads, daemonThreads("pleodox-render"));
+	}
+
+	/**
+	 * @return a virtual thread per task executor, {@code null} before JDK 21
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Virtual threads are not available, falling back to platform threads");
+			}
+			return null;
+		}
+	}
+
+	public static boolean isVirtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	static ThreadFactory daemonThreads(String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
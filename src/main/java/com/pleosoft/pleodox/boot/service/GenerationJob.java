@@ -0,0 +1,156 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Handle of a document generated in the background. Cancelling the job or its
+ * future interrupts the render, a document which is still produced afterwards
+ * is deleted.
+ */
+public class GenerationJob {
+
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+	}
+
+	private final String id;
+	private final Instant submitted = Instant.now();
+	private final CompletableFuture<Path> future = new CompletableFuture<>();
+	private volatile Instant started;
+	private volatile Instant finished;
+	private volatile Future<?> task;
+
+	GenerationJob(String id) {
+		this.id = id;
+	}
+
+	static GenerationJob start(String id, Callable<Path> generation, ExecutorService executor) {
+		final GenerationJob job = new GenerationJob(id);
+		job.future.whenComplete((path, e) -> job.finish());
+		job.task = executor.submit(() -> job.run(generation));
+		if (job.future.isCancelled()) {
+			// cancelled before the task was known
+			job.task.cancel(true);
+		}
+		return job;
+	}
+
+	private void run(Callable<Path> generation) {
+		if (future.isDone()) {
+			return;
+		}
+
+		started = Instant.now();
+		try {
+			final Path path = generation.call();
+			if (!future.complete(path)) {
+				discard(path);
+			}
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	private void finish() {
+		finished = Instant.now();
+		final Future<?> current = task;
+		if (future.isCancelled() && current != null) {
+			current.cancel(true);
+		}
+	}
+
+	private static void discard(Path path) {
+		if (path != null) {
+			try {
+				Files.deleteIfExists(path);
+			} catch (Exception e1) {
+				;
+			}
+		}
+	}
+
+	public boolean cancel() {
+		return future.cancel(true);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Status getStatus() {
+		if (future.isCancelled()) {
+			return Status.CANCELLED;
+		} else if (future.isCompletedExceptionally()) {
+			return Status.FAILED;
+		} else if (future.isDone()) {
+			return Status.COMPLETED;
+		}
+		return started != null ? Status.RUNNING : Status.QUEUED;
+	}
+
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	public CompletableFuture<Path> getFuture() {
+		return future;
+	}
+
+	/**
+	 * @return the generated document, {@code null} while the job runs or when
+	 *         it did not complete
+	 */
+	public Path getResult() {
+		return getStatus() == Status.COMPLETED ? future.getNow(null) : null;
+	}
+
+	public Throwable getFailure() {
+		if (getStatus() != Status.FAILED) {
+			return null;
+		}
+		try {
+			future.join();
+			return null;
+		} catch (CompletionException e) {
+			return e.getCause();
+		} catch (CancellationException e) {
+			return e;
+		}
+	}
+
+	public Instant getSubmitted() {
+		return submitted;
+	}
+
+	public Instant getStarted() {
+		return started;
+	}
+
+	public Instant getFinished() {
+		return finished;
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * In-memory registry of background generation jobs. A job can be polled and
+ * cancelled by its id, a finished job and its result are kept for the
+ * retention time and dropped afterwards. Once started, a background purger
+ * drops them even when the registry is not accessed.
+ */
+public class GenerationJobRegistry implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(GenerationJobRegistry.class);
+
+	private final ExecutorService executor;
+	private final Map<String, GenerationJob> jobs = new ConcurrentHashMap<>();
+
+	private Duration retention = Duration.ofMinutes(15);
+	private Duration purgeInterval = Duration.ofMinutes(1);
+	private boolean deleteExpiredResults = true;
+	private ScheduledExecutorService purger;
+
+	public GenerationJobRegistry() {
+		this(GenerationExecutors.newAsyncExecutor());
+	}
+
+	public GenerationJobRegistry(ExecutorService executor) {
+		Assert.notNull(executor, "executor parameter cannot be empty");
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts purging the expired jobs every purge interval.
+	 */
+	public synchronized void start() {
+		Assert.state(purger == null, "The generation job registry is already started");
+
+		purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "pleodox-job-purger");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long interval = purgeInterval.toMillis();
+		purger.scheduleWithFixedDelay(this::purgeQuietly, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (purger != null) {
+			purger.shutdownNow();
+			purger = null;
+		}
+	}
+
+	public GenerationJob submit(Callable<Path> generation) {
+		Assert.notNull(generation, "generation parameter cannot be empty");
+		purgeExpired();
+
+		final GenerationJob job = GenerationJob.start(UUID.randomUUID().toString(), generation, executor);
+		jobs.put(job.getId(), job);
+		return job;
+	}
+
+	/**
+	 * @return the job, {@code null} if it is unknown or expired
+	 */
+	public GenerationJob get(String id) {
+		Assert.hasText(id, "id parameter cannot be empty");
+		purgeExpired();
+		return jobs.get(id);
+	}
+
+	public boolean cancel(String id) {
+		final GenerationJob job = get(id);
+		return job != null && job.cancel();
+	}
+
+	public List<GenerationJob> getJobs() {
+		purgeExpired();
+		return jobs.values().stream().sorted(Comparator.comparing(GenerationJob::getSubmitted))
+				.collect(Collectors.toList());
+	}
+
+	public void purgeExpired() {
+		final Instant expiry = Instant.now().minus(retention);
+		for (GenerationJob job : new ArrayList<>(jobs.values())) {
+			final Instant finished = job.getFinished();
+			if (finished != null && finished.isBefore(expiry) && jobs.remove(job.getId(), job)
+					&& deleteExpiredResults) {
+				deleteResult(job.getResult());
+			}
+		}
+	}
+
+	private void purgeQuietly() {
+		try {
+			purgeExpired();
+		} catch (Exception e) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Purging the expired generation jobs failed", e);
+			}
+		}
+	}
+
+	private static void deleteResult(Path result) {
+		if (result != null) {
+			try {
+				if (Files.isDirectory(result)) {
+					FileSystemUtils.deleteRecursively(result);
+				} else {
+					Files.deleteIfExists(result);
+				}
+			} catch (Exception e1) {
+				;
+			}
+		}
+	}
+
+	public void setRetention(Duration retention) {
+		Assert.notNull(retention, "retention parameter cannot be empty");
+		this.retention = retention;
+	}
+
+	public void setPurgeInterval(Duration purgeInterval) {
+		Assert.notNull(purgeInterval, "purgeInterval parameter cannot be empty");
+		Assert.isTrue(!purgeInterval.isNegative() && !purgeInterval.isZero(),
+				"purgeInterval parameter must be positive");
+		this.purgeInterval = purgeInterval;
+	}
+
+	public void setDeleteExpiredResults(boolean deleteExpiredResults) {
+		this.deleteExpiredResults = deleteExpiredResults;
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+
+/**
+ * Times the phases of the generation of one document and reports them to the
+ * {@link DocumentGenerationHandler}. A trace travels with the template options
+ * under {@value #OPTION}, one phase is open at a time and {@link #fail} reports
+ * the open one as failed. A trace is used by one thread at a time.
+ */
+public class GenerationTrace {
+
+	public static final String OPTION = "generationTrace";
+
+	private static final GenerationTrace NONE = new GenerationTrace(null, null, null);
+
+	private final DocumentGenerationHandler handler;
+	private final String templateName;
+	private final TemplateOutputFormat outputFormat;
+	private final long started = System.nanoTime();
+
+	private GenerationPhase phase;
+	private long phaseStarted;
+	private boolean finished;
+
+	public GenerationTrace(DocumentGenerationHandler handler, String templateName,
+			TemplateOutputFormat outputFormat) {
+		this.handler = handler;
+		this.templateName = templateName;
+		this.outputFormat = outputFormat;
+	}
+
+	/**
+	 * The trace of the options or one which reports nothing.
+	 */
+	public static GenerationTrace from(TemplateOptions options) {
+		final Object trace = options != null ? options.getOption(OPTION) : null;
+		return trace instanceof GenerationTrace ? (GenerationTrace) trace : NONE;
+	}
+
+	public void begin(GenerationPhase phase) {
+		if (handler == null) {
+			return;
+		}
+		end();
+		this.phase = phase;
+		this.phaseStarted = System.nanoTime();
+	}
+
+	public void end() {
+		end(-1);
+	}
+
+	public void end(long bytes) {
+		if (phase != null) {
+			report(phase, phaseStarted, bytes, null);
+			phase = null;
+		}
+	}
+
+	public void end(Path document) {
+		end(phase != null ? sizeOf(document) : -1);
+	}
+
+	public void fail(Throwable cause) {
+		if (phase != null) {
+			report(phase, phaseStarted, -1, cause);
+			phase = null;
+		}
+	}
+
+	public void documentGenerated(long bytes) {
+		end();
+		if (handler != null && !finished) {
+			finished = true;
+			report(GenerationPhase.DOCUMENT, started, bytes, null);
+		}
+	}
+
+	public void documentGenerated(Path document) {
+		documentGenerated(handler != null ? sizeOf(document) : -1);
+	}
+
+	/**
+	 * Reports the open phase and the document as failed, unless the document
+	 * was already reported.
+	 */
+	public void documentFailed(Throwable cause) {
+		fail(cause);
+		if (handler != null && !finished) {
+			finished = true;
+			report(GenerationPhase.DOCUMENT, started, -1, cause);
+		}
+	}
+
+	private void report(GenerationPhase phase, long phaseStarted, long bytes, Throwable failure) {
+		handler.phaseCompleted(new GenerationEvent(phase, templateName, outputFormat,
+				System.nanoTime() - phaseStarted, bytes, failure));
+	}
+
+	private static long sizeOf(Path document) {
+		try {
+			return document != null ? Files.size(document) : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+}
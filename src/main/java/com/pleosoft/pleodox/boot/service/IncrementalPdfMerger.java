@@ -0,0 +1,153 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFCloneUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.springframework.util.Assert;
+
+/**
+ * Appends PDF documents one by one to a merged document as they become ready,
+ * {@link #finish()} writes it out. The pages are cloned like the optimized
+ * resources mode of PDFBox's merger does, so every source is closed right
+ * after it was appended and may be deleted. A source which cannot be read
+ * leaves the merged document as it was, nothing is written out before
+ * {@link #finish()}. Not thread safe.
+ */
+public class IncrementalPdfMerger implements Closeable {
+
+	private final PdfMergeService mergeService;
+	private final MemoryUsageSetting memoryUsageSetting;
+	private final OutputStream os;
+
+	private final long started = System.nanoTime();
+	private final long baseHeap;
+	private long peakHeap;
+	private int documentCount;
+
+	private PDDocument destination;
+	private PDFCloneUtility cloner;
+	private PdfMergeStats stats;
+
+	IncrementalPdfMerger(PdfMergeService mergeService, MemoryUsageSetting memoryUsageSetting, OutputStream os) {
+		this.mergeService = mergeService;
+		this.memoryUsageSetting = memoryUsageSetting;
+		this.os = os;
+		this.baseHeap = usedHeap();
+	}
+
+	public void append(File document) throws IOException {
+		Assert.notNull(document, "document parameter cannot be empty");
+		Assert.state(stats == null, "The merger is already finished");
+
+		try (PDDocument source = PDDocument.load(document, memoryUsageSetting)) {
+			append(source);
+		}
+	}
+
+	public void append(InputStream document) throws IOException {
+		Assert.notNull(document, "document parameter cannot be empty");
+		Assert.state(stats == null, "The merger is already finished");
+
+		try (PDDocument source = PDDocument.load(document, memoryUsageSetting)) {
+			append(source);
+		}
+	}
+
+	private void append(PDDocument source) throws IOException {
+		if (destination == null) {
+			destination = new PDDocument(memoryUsageSetting);
+			cloner = new PDFCloneUtility(destination);
+		}
+
+		// every page is cloned before any is added, a broken source adds none
+		final List<PDPage> newPages = new ArrayList<>();
+		for (PDPage page : source.getPages()) {
+			final PDPage newPage = new PDPage((COSDictionary) cloner.cloneForNewDocument(page.getCOSObject()));
+			newPage.setCropBox(page.getCropBox());
+			newPage.setMediaBox(page.getMediaBox());
+			newPage.setRotation(page.getRotation());
+
+			// resources shared by several pages are cloned once
+			final PDResources resources = page.getResources();
+			newPage.setResources(resources != null
+					? new PDResources((COSDictionary) cloner.cloneForNewDocument(resources))
+					: new PDResources());
+			newPages.add(newPage);
+		}
+		for (PDPage newPage : newPages) {
+			destination.addPage(newPage);
+		}
+		documentCount++;
+		sampleHeap();
+	}
+
+	public int getDocumentCount() {
+		return documentCount;
+	}
+
+	public PdfMergeStats finish() throws IOException {
+		Assert.state(stats == null, "The merger is already finished");
+		Assert.state(destination != null, "There is no document to merge");
+
+		try {
+			sampleHeap();
+			destination.save(os);
+			sampleHeap();
+
+			stats = new PdfMergeStats(documentCount, destination.getNumberOfPages(), System.nanoTime() - started,
+					Math.max(0, peakHeap - baseHeap));
+		} finally {
+			close();
+		}
+		mergeService.recordMerge(stats);
+		return stats;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (destination != null) {
+			try {
+				destination.close();
+			} finally {
+				destination = null;
+				cloner = null;
+			}
+		}
+	}
+
+	private void sampleHeap() {
+		peakHeap = Math.max(peakHeap, usedHeap());
+	}
+
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,399 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.transform.TransformerException;
+
+import org.docx4j.TraversalUtil;
+import org.docx4j.XmlUtils;
+import org.docx4j.jaxb.Context;
+import org.docx4j.model.fields.ComplexFieldLocator;
+import org.docx4j.model.fields.FieldRef;
+import org.docx4j.model.fields.FieldsPreprocessor;
+import org.docx4j.model.fields.FldSimpleModel;
+import org.docx4j.model.fields.FormattingSwitchHelper;
+import org.docx4j.model.fields.merge.DataFieldName;
+import org.docx4j.model.fields.merge.MailMerger.OutputField;
+import org.docx4j.openpackaging.exceptions.Docx4JException;
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.docx4j.openpackaging.parts.JaxbXmlPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.MainDocumentPart;
+import org.docx4j.openpackaging.parts.relationships.Namespaces;
+import org.docx4j.openpackaging.parts.relationships.RelationshipsPart;
+import org.docx4j.relationships.Relationship;
+import org.docx4j.vml.CTTextbox;
+import org.docx4j.wml.BooleanDefaultTrue;
+import org.docx4j.wml.CTFFData;
+import org.docx4j.wml.CTFFName;
+import org.docx4j.wml.CTFFTextInput;
+import org.docx4j.wml.CTFFTextType;
+import org.docx4j.wml.CTLanguage;
+import org.docx4j.wml.ContentAccessor;
+import org.docx4j.wml.ObjectFactory;
+import org.docx4j.wml.P;
+import org.docx4j.wml.R;
+import org.docx4j.wml.RPr;
+import org.docx4j.wml.STFFTextType;
+import org.docx4j.wml.Tc;
+import org.docx4j.wml.Text;
+import org.jvnet.jaxb2_commons.ppp.Child;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+
+/**
+ * Merges MERGEFIELDs like docx4j's MailMerger.performMerge, but the output
+ * field mode and the other settings are read from the {@link TemplateOptions}
+ * of each call instead of a static, so packages with different settings can be
+ * merged at the same time. The package is merged in place, every render works
+ * on its own copy.
+ */
+public class MailMergeEngine {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MailMergeEngine.class);
+
+	public static final OutputField DEFAULT_OUTPUT_FIELD = OutputField.REMOVED;
+
+	public void merge(WordprocessingMLPackage wordMLPackage, Map<DataFieldName, String> data,
+			TemplateOptions options) throws Docx4JException {
+		final Merge merge = new Merge(wordMLPackage, data, getOutputField(options));
+
+		final MainDocumentPart mainDocumentPart = wordMLPackage.getMainDocumentPart();
+		FieldsPreprocessor.complexifyFields(mainDocumentPart);
+		merge.perform(mainDocumentPart.getJaxbElement().getBody());
+
+		final Boolean headersAndFooters = options != null ? (Boolean) options.getOption("mergeHeadersAndFooters")
+				: null;
+		final RelationshipsPart relationshipsPart = mainDocumentPart.getRelationshipsPart();
+		if (Boolean.FALSE.equals(headersAndFooters) || relationshipsPart == null) {
+			return;
+		}
+
+		for (Relationship relationship : relationshipsPart.getRelationships().getRelationship()) {
+			if (Namespaces.HEADER.equals(relationship.getType()) || Namespaces.FOOTER.equals(relationship.getType())) {
+				final JaxbXmlPart<?> part = (JaxbXmlPart<?>) relationshipsPart.getPart(relationship);
+				FieldsPreprocessor.complexifyFields(part);
+				merge.perform((ContentAccessor) part.getJaxbElement());
+			}
+		}
+	}
+
+	static OutputField getOutputField(TemplateOptions options) {
+		final Object outputField = options != null ? options.getOption("mergeFieldOutput") : null;
+		if (outputField == null) {
+			return DEFAULT_OUTPUT_FIELD;
+		} else if (outputField instanceof OutputField) {
+			return (OutputField) outputField;
+		}
+		return OutputField.valueOf(outputField.toString().trim().toUpperCase());
+	}
+
+	/**
+	 * State of a single merge call.
+	 */
+	private static class Merge {
+
+		private static final Pattern NON_ALPHANUMERIC = Pattern.compile("[^a-zA-Z0-9]");
+
+		private final WordprocessingMLPackage wordMLPackage;
+		private final Map<DataFieldName, String> data;
+		private final OutputField outputField;
+
+		// lower cased form field names generated so far
+		private final Set<String> formTextFieldNames = new HashSet<>();
+
+		Merge(WordprocessingMLPackage wordMLPackage, Map<DataFieldName, String> data, OutputField outputField) {
+			this.wordMLPackage = wordMLPackage;
+			this.data = data;
+			this.outputField = outputField;
+		}
+
+		void perform(ContentAccessor root) throws Docx4JException {
+			final ComplexFieldLocator locator = new ComplexFieldLocator();
+			new TraversalUtil(root, locator);
+
+			final List<FieldRef> fieldRefs = new ArrayList<>();
+			canonicaliseStarts(locator, fieldRefs);
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Found " + fieldRefs.size() + " fields");
+			}
+
+			for (FieldRef fieldRef : fieldRefs) {
+				// the name docx4j reads comes from the first instruction run only
+				if ("MERGEFIELD".equals(fieldRef.getFldName()) || fieldRef.getInstructions().size() > 1) {
+					final String instr = extractInstr(fieldRef.getInstructions());
+					if (instr != null && instr.trim().startsWith("MERGEFIELD")) {
+						mergeField(root, fieldRef, instr);
+					} else if ("MERGEFIELD".equals(fieldRef.getFldName()) && LOG.isWarnEnabled()) {
+						LOG.warn("Skipping a MERGEFIELD with a nested field in its instruction");
+					}
+				}
+			}
+		}
+
+		private void mergeField(ContentAccessor root, FieldRef fieldRef, String instr) throws Docx4JException {
+			final String datafieldName = getDatafieldNameFromInstr(instr);
+			if (!StringUtils.hasText(datafieldName)) {
+				if (LOG.isWarnEnabled()) {
+					LOG.warn("Skipping a MERGEFIELD without a field name in '" + instr + "'");
+				}
+				return;
+			}
+
+			String value = data.get(new DataFieldName(datafieldName));
+			String generalFormat = null;
+			if (!StringUtils.hasText(value)) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Couldn't find value for key: '" + datafieldName + "'");
+				}
+
+				if (OutputField.REMOVED.equals(outputField)) {
+					removeSimpleField(fieldRef);
+					if (!StringUtils.hasText(getTextInsideContent(fieldRef.getParent()))) {
+						recursiveRemove(root, fieldRef.getParent());
+					}
+				}
+			} else {
+				final FldSimpleModel model = new FldSimpleModel();
+				try {
+					model.build(instr);
+					value = FormattingSwitchHelper.applyFormattingSwitch(wordMLPackage, model, value,
+							extractLang(fieldRef.getResultsSlot()));
+					generalFormat = FormattingSwitchHelper.findFirstSwitchValue("\\*", model.getFldParameters(),
+							true);
+				} catch (TransformerException e) {
+					LOG.warn("Can't format the field", e);
+				}
+				fieldRef.setResult(value);
+			}
+
+			if (OutputField.AS_FORMTEXT_REGULAR.equals(outputField)) {
+				toFormText(fieldRef, datafieldName, generalFormat);
+			} else if (!OutputField.KEEP_MERGEFIELD.equals(outputField)) {
+				fieldRef.getParent().getContent().remove(fieldRef.getBeginRun());
+				fieldRef.getParent().getContent().remove(fieldRef.getEndRun());
+			}
+		}
+
+		private void toFormText(FieldRef fieldRef, String datafieldName, String generalFormat) {
+			// only text instructions get here, see extractInstr
+			final List<Text> texts = instructionTexts(fieldRef.getInstructions());
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Format of " + datafieldName + ": " + generalFormat);
+			}
+
+			// Word may split the instruction across several runs
+			texts.get(0).setValue("FORMTEXT");
+			for (int i = 1; i < texts.size(); i++) {
+				texts.get(i).setValue("");
+			}
+			setFormFieldProperties(fieldRef, generateFormTextFieldName(datafieldName));
+
+			final R resultsSlot = fieldRef.getResultsSlot();
+			if (resultsSlot.getRPr() != null && resultsSlot.getRPr().getHighlight() != null) {
+				resultsSlot.getRPr().setHighlight(null);
+			}
+		}
+
+		private String generateFormTextFieldName(String datafieldName) {
+			String name = NON_ALPHANUMERIC.matcher(datafieldName).replaceAll("_");
+			final char first = name.charAt(0);
+			if (('0' <= first && first <= '9') || first == '_') {
+				name = "z" + name;
+			}
+
+			if (formTextFieldNames.contains(name.toLowerCase())) {
+				int i = 2;
+				while (formTextFieldNames.contains((name + i).toLowerCase())) {
+					i++;
+				}
+				name = name + i;
+			}
+			formTextFieldNames.add(name.toLowerCase());
+			return name;
+		}
+	}
+
+	private static void canonicaliseStarts(ComplexFieldLocator locator, List<FieldRef> fieldRefs)
+			throws Docx4JException {
+		for (P p : locator.getStarts()) {
+			final Object parent = p.getParent();
+
+			List<Object> siblings;
+			if (parent instanceof ContentAccessor) {
+				siblings = ((ContentAccessor) parent).getContent();
+			} else if (parent instanceof CTTextbox) {
+				siblings = ((CTTextbox) parent).getTxbxContent().getContent();
+			} else if (parent instanceof List) {
+				@SuppressWarnings("unchecked")
+				List<Object> list = (List<Object>) parent;
+				siblings = list;
+			} else {
+				throw new Docx4JException(
+						"Unexpected parent: " + (parent == null ? null : parent.getClass().getName()));
+			}
+
+			final int index = siblings.indexOf(p);
+			final P canonicalised = FieldsPreprocessor.canonicalise(p, fieldRefs);
+			canonicalised.setParent(parent);
+			siblings.set(index, canonicalised);
+		}
+	}
+
+	private static String extractLang(R resultsSlot) {
+		final RPr rPr = resultsSlot.getRPr();
+		if (rPr != null) {
+			final CTLanguage lang = rPr.getLang();
+			if (lang != null) {
+				return lang.getVal();
+			}
+		}
+		return null;
+	}
+
+	private static String getDatafieldNameFromInstr(String instr) {
+		final int start = instr.indexOf("MERGEFIELD");
+		if (start < 0) {
+			return null;
+		}
+		final String name = instr.substring(start + 10).trim();
+		if (name.startsWith("\"")) {
+			if (name.indexOf('"', 1) > -1) {
+				return name.substring(1, name.indexOf('"', 1));
+			}
+			LOG.warn("Quote mismatch in " + instr);
+			return name.indexOf(' ') > -1 ? name.substring(1, name.indexOf(' ')) : name.substring(1);
+		}
+		return name.indexOf(' ') > -1 ? name.substring(0, name.indexOf(' ')) : name;
+	}
+
+	/**
+	 * The instruction of the field, concatenated when Word split it across
+	 * several runs.
+	 */
+	private static String extractInstr(List<Object> instructions) {
+		final List<Text> texts = instructionTexts(instructions);
+		if (texts == null || texts.isEmpty()) {
+			return null;
+		}
+
+		final StringBuilder instr = new StringBuilder();
+		for (Text text : texts) {
+			if (text.getValue() != null) {
+				instr.append(text.getValue());
+			}
+		}
+		return instr.toString();
+	}
+
+	/**
+	 * @return the texts of the instruction, {@code null} when it contains
+	 *         anything else, e.g. a nested field
+	 */
+	private static List<Text> instructionTexts(List<Object> instructions) {
+		final List<Text> texts = new ArrayList<>(instructions.size());
+		for (Object instruction : instructions) {
+			final Object unwrapped = XmlUtils.unwrap(instruction);
+			if (!(unwrapped instanceof Text)) {
+				return null;
+			}
+			texts.add((Text) unwrapped);
+		}
+		return texts;
+	}
+
+	private static void removeSimpleField(FieldRef fieldRef) {
+		final List<Object> content = fieldRef.getParent().getContent();
+		final int end = content.indexOf(fieldRef.getEndRun());
+		final int begin = content.indexOf(fieldRef.getBeginRun());
+		for (int i = end; i >= begin; --i) {
+			content.remove(i);
+		}
+	}
+
+	private static String getTextInsideContent(ContentAccessor paragraph) {
+		final StringBuilder result = new StringBuilder();
+		for (Object content : paragraph.getContent()) {
+			if (content instanceof R) {
+				for (Object runContent : ((R) content).getContent()) {
+					final Object unwrapped = runContent instanceof JAXBElement
+							? ((JAXBElement<?>) runContent).getValue()
+							: runContent;
+					if (unwrapped instanceof Text) {
+						result.append(((Text) unwrapped).getValue());
+					}
+				}
+			}
+		}
+		return result.toString();
+	}
+
+	private static void recursiveRemove(ContentAccessor content, Object needToBeRemoved) {
+		if (needToBeRemoved instanceof P) {
+			final Object parent = ((Child) needToBeRemoved).getParent();
+			// a table cell needs a paragraph
+			if (parent instanceof Tc && ((Tc) parent).getContent().size() == 1) {
+				return;
+			}
+		}
+
+		if (content.getContent().remove(needToBeRemoved)) {
+			return;
+		}
+
+		for (Object object : content.getContent()) {
+			if (object instanceof ContentAccessor) {
+				recursiveRemove((ContentAccessor) object, needToBeRemoved);
+			} else if (object instanceof JAXBElement && ((JAXBElement<?>) object).getValue() instanceof ContentAccessor) {
+				recursiveRemove((ContentAccessor) ((JAXBElement<?>) object).getValue(), needToBeRemoved);
+			}
+		}
+	}
+
+	private static void setFormFieldProperties(FieldRef fieldRef, String name) {
+		final ObjectFactory factory = Context.getWmlObjectFactory();
+		final CTFFData ffData = factory.createCTFFData();
+		fieldRef.setFormFieldProperties(ffData);
+
+		final CTFFName ffName = factory.createCTFFName();
+		ffName.setVal(name);
+		ffData.getNameOrEnabledOrCalcOnExit().add(factory.createCTFFDataName(ffName));
+
+		final BooleanDefaultTrue enabled = factory.createBooleanDefaultTrue();
+		ffData.getNameOrEnabledOrCalcOnExit().add(factory.createCTFFDataEnabled(enabled));
+		final BooleanDefaultTrue calcOnExit = factory.createBooleanDefaultTrue();
+		ffData.getNameOrEnabledOrCalcOnExit().add(factory.createCTFFDataCalcOnExit(calcOnExit));
+
+		final CTFFTextInput textInput = factory.createCTFFTextInput();
+		final CTFFTextType textType = factory.createCTFFTextType();
+		textType.setVal(STFFTextType.REGULAR);
+		textInput.setType(textType);
+		ffData.getNameOrEnabledOrCalcOnExit().add(factory.createCTFFDataTextInput(textInput));
+	}
+}
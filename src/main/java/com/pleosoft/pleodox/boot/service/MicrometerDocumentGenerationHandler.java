@@ -0,0 +1,127 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes the generation events to a Micrometer registry:
+ * <ul>
+ * <li>{@code pleodox.generation.phase} timer per phase, format, template and
+ * outcome</li>
+ * <li>{@code pleodox.generation.bytes} size summary per phase, format and
+ * template</li>
+ * <li>{@code pleodox.generation.failures} counter per phase, format, template
+ * and exception</li>
+ * <li>{@code pleodox.generation.active} gauge of the documents in
+ * generation</li>
+ * </ul>
+ * The callbacks are passed on to the delegate. micrometer-core is an optional
+ * dependency and has to be on the classpath.
+ */
+public class MicrometerDocumentGenerationHandler implements DocumentGenerationHandler {
+
+	private final MeterRegistry registry;
+	private final DocumentGenerationHandler delegate;
+	private final AtomicInteger active = new AtomicInteger();
+
+	private boolean templateTag = true;
+	private boolean percentileHistogram = true;
+
+	public MicrometerDocumentGenerationHandler(MeterRegistry registry) {
+		this(registry, new NoopDocumentGenerationHandler());
+	}
+
+	public MicrometerDocumentGenerationHandler(MeterRegistry registry, DocumentGenerationHandler delegate) {
+		Assert.notNull(registry, "registry parameter cannot be empty");
+		Assert.notNull(delegate, "delegate parameter cannot be empty");
+		this.registry = registry;
+		this.delegate = delegate;
+
+		registry.gauge("pleodox.generation.active", active);
+	}
+
+	@Override
+	public void beforeDocumentGenerated() {
+		active.incrementAndGet();
+		delegate.beforeDocumentGenerated();
+	}
+
+	@Override
+	public void afterDocumentGenerated() {
+		active.decrementAndGet();
+		delegate.afterDocumentGenerated();
+	}
+
+	@Override
+	public void documentGenerationFailed(Throwable cause) {
+		active.decrementAndGet();
+		delegate.documentGenerationFailed(cause);
+	}
+
+	@Override
+	public void phaseCompleted(GenerationEvent event) {
+		final Tags tags = tags(event);
+
+		Timer.builder("pleodox.generation.phase").tags(tags)
+				.tag("outcome", event.isSuccessful() ? "success" : "failure")
+				.publishPercentileHistogram(percentileHistogram).register(registry)
+				.record(event.getDuration(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+
+		if (event.getBytes() >= 0) {
+			DistributionSummary.builder("pleodox.generation.bytes").baseUnit("bytes").tags(tags).register(registry)
+					.record(event.getBytes());
+		}
+
+		if (!event.isSuccessful()) {
+			Counter.builder("pleodox.generation.failures").tags(tags)
+					.tag("exception", event.getFailure().getClass().getSimpleName()).register(registry).increment();
+		}
+
+		delegate.phaseCompleted(event);
+	}
+
+	private Tags tags(GenerationEvent event) {
+		final TemplateOutputFormat format = event.getOutputFormat();
+		final String template = templateTag && event.getTemplateName() != null ? event.getTemplateName() : "none";
+		return Tags.of("phase", event.getPhase().name().toLowerCase(), "format",
+				format != null ? format.name().toLowerCase() : "none", "template", template);
+	}
+
+	/**
+	 * Tags the meters with the template name, on by default. Off when there are
+	 * too many templates for the meter cardinality.
+	 */
+	public void setTemplateTag(boolean templateTag) {
+		this.templateTag = templateTag;
+	}
+
+	public void setPercentileHistogram(boolean percentileHistogram) {
+		this.percentileHistogram = percentileHistogram;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Merges PDF documents within a memory budget. PDFBox keeps up to
+ * {@link #setMaxMainMemoryBytes(long)} of the merged documents on the heap,
+ * the rest spills to scratch files in the scratch directory.
+ */
+public class PdfMergeService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PdfMergeService.class);
+
+	public static final long DEFAULT_MAX_MAIN_MEMORY = 64L * 1024 * 1024;
+
+	private long maxMainMemoryBytes = DEFAULT_MAX_MAIN_MEMORY;
+	private long maxStorageBytes = -1;
+	private Path scratchDirectory;
+
+	private final LongAdder mergeCount = new LongAdder();
+	private final LongAdder pageCount = new LongAdder();
+	private final LongAdder totalMergeNanos = new LongAdder();
+	private final AtomicLong maxMergeNanos = new AtomicLong();
+	private final AtomicLong maxPeakHeapBytes = new AtomicLong();
+
+	public PdfMergeStats merge(List<File> documents, Path destination) throws IOException {
+		// PDFBox writes every token on its own
+		try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(destination))) {
+			return merge(documents, os);
+		}
+	}
+
+	public PdfMergeStats merge(List<File> documents, OutputStream os) throws IOException {
+		Assert.notEmpty(documents, "documents parameter cannot be empty");
+
+		try (IncrementalPdfMerger merger = open(os)) {
+			for (File document : documents) {
+				merger.append(document);
+			}
+			return merger.finish();
+		}
+	}
+
+	/**
+	 * Starts a merge to which documents are appended as they are generated,
+	 * {@code os} is left open.
+	 */
+	public IncrementalPdfMerger open(OutputStream os) throws IOException {
+		Assert.notNull(os, "os parameter cannot be empty");
+		return new IncrementalPdfMerger(this, newMemoryUsageSetting(), os);
+	}
+
+	MemoryUsageSetting newMemoryUsageSetting() throws IOException {
+		final MemoryUsageSetting setting;
+		if (maxMainMemoryBytes < 0) {
+			setting = MemoryUsageSetting.setupMainMemoryOnly();
+		} else if (maxMainMemoryBytes == 0) {
+			setting = MemoryUsageSetting.setupTempFileOnly(maxStorageBytes);
+		} else {
+			setting = MemoryUsageSetting.setupMixed(maxMainMemoryBytes, maxStorageBytes);
+		}
+
+		if (scratchDirectory != null) {
+			Files.createDirectories(scratchDirectory);
+			setting.setTempDir(scratchDirectory.toFile());
+		}
+		return setting;
+	}
+
+	void recordMerge(PdfMergeStats stats) {
+		final long nanos = stats.getElapsedTime(TimeUnit.NANOSECONDS);
+		mergeCount.increment();
+		pageCount.add(stats.getPageCount());
+		totalMergeNanos.add(nanos);
+		maxMergeNanos.accumulateAndGet(nanos, Math::max);
+		maxPeakHeapBytes.accumulateAndGet(stats.getPeakHeapBytes(), Math::max);
+
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Merged " + stats);
+		}
+	}
+
+	/**
+	 * Heap budget of a merge, past it the documents spill to scratch files. 0
+	 * keeps everything in scratch files, a negative value everything on the
+	 * heap.
+	 */
+	public void setMaxMainMemoryBytes(long maxMainMemoryBytes) {
+		this.maxMainMemoryBytes = maxMainMemoryBytes;
+	}
+
+	/**
+	 * Limit of the scratch files of a merge, unlimited when negative.
+	 */
+	public void setMaxStorageBytes(long maxStorageBytes) {
+		this.maxStorageBytes = maxStorageBytes;
+	}
+
+	public void setScratchDirectory(Path scratchDirectory) {
+		this.scratchDirectory = scratchDirectory;
+	}
+
+	public long getMergeCount() {
+		return mergeCount.sum();
+	}
+
+	public long getPageCount() {
+		return pageCount.sum();
+	}
+
+	public long getTotalMergeTime(TimeUnit unit) {
+		return unit.convert(totalMergeNanos.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxMergeTime(TimeUnit unit) {
+		return unit.convert(maxMergeNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxPeakHeapBytes() {
+		return maxPeakHeapBytes.get();
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Figures of a single merge. The heap is sampled after every appended
+ * document and around the save, the peak is the highest sample above the
+ * heap in use when the merge started. It includes whatever else the JVM
+ * allocated meanwhile, so it is an upper bound on a busy server.
+ */
+public class PdfMergeStats {
+
+	private final int documentCount;
+	private final int pageCount;
+	private final long elapsedNanos;
+	private final long peakHeapBytes;
+
+	PdfMergeStats(int documentCount, int pageCount, long elapsedNanos, long peakHeapBytes) {
+		this.documentCount = documentCount;
+		this.pageCount = pageCount;
+		this.elapsedNanos = elapsedNanos;
+		this.peakHeapBytes = peakHeapBytes;
+	}
+
+	public int getDocumentCount() {
+		return documentCount;
+	}
+
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	public long getElapsedTime(TimeUnit unit) {
+		return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public long getPeakHeapBytes() {
+		return peakHeapBytes;
+	}
+
+	@Override
+	public String toString() {
+		return documentCount + " documents, " + pageCount + " pages in " + getElapsedTime(TimeUnit.MILLISECONDS)
+				+ " ms, peak heap " + (peakHeapBytes / 1024) + " KB";
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.docx4j.model.fields.merge.DataFieldName;
+import org.springframework.util.ObjectUtils;
+
+import com.pleosoft.pleodox.boot.data.PlaceholdersData;
+
+/**
+ * The placeholders of a template compiled into a tree of their dot separated
+ * paths. {@link #resolve(Map, Map, Map)} fills the placeholders missing in the
+ * request data with defaults and flattens the data into merge field values in
+ * a single walk. The index is immutable and shared by all renders of a
+ * template version.
+ */
+public class PlaceholderPathIndex {
+
+	public static final String UNKNOWN_STRING = "-";
+
+	private final Node root = new Node();
+
+	public PlaceholderPathIndex(PlaceholdersData placeholders) {
+		for (String field : placeholders.getFields()) {
+			node(field).field = true;
+		}
+		for (Entry<String, Set<String>> table : placeholders.getTables().entrySet()) {
+			node(table.getKey()).tableColumns = table.getValue().toArray(new String[0]);
+		}
+	}
+
+	public boolean isEmpty() {
+		return root.children.isEmpty();
+	}
+
+	/**
+	 * Writes the defaults into {@code data}, the flattened values go to
+	 * {@code items} and the top level ones also to {@code properties}. Keys are
+	 * flattened like Spring's ObjectToMapTransformer: {@code a.b} for nested
+	 * maps and {@code a[0]} for list items.
+	 */
+	public void resolve(Map<String, Object> data, Map<DataFieldName, String> items, Map<String, String> properties) {
+		resolveMap(root, null, data, items, properties);
+	}
+
+	private void resolveMap(Node node, String prefix, Map<String, Object> map, Map<DataFieldName, String> items,
+			Map<String, String> properties) {
+		for (Entry<String, Object> entry : map.entrySet()) {
+			final Node child = node != null ? node.children.get(entry.getKey()) : null;
+
+			Object value = entry.getValue();
+			if (child != null && child.isPlaceholder() && ObjectUtils.isEmpty(value)) {
+				value = child.defaultValue();
+				entry.setValue(value);
+			}
+			flatten(child, path(prefix, entry.getKey()), value, items, properties);
+		}
+
+		if (node == null) {
+			return;
+		}
+
+		for (Entry<String, Node> entry : node.children.entrySet()) {
+			final String key = entry.getKey();
+			if (!map.containsKey(key)) {
+				final Node child = entry.getValue();
+				// missing parents are created, the defaults go to the level of their path
+				final Object value = child.isPlaceholder() ? child.defaultValue() : new HashMap<String, Object>();
+				flatten(child, path(prefix, key), value, items, properties);
+				map.put(key, value);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void flatten(Node node, String path, Object value, Map<DataFieldName, String> items,
+			Map<String, String> properties) {
+		if (value instanceof Map) {
+			resolveMap(node, path, (Map<String, Object>) value, items, properties);
+		} else if (value instanceof Collection) {
+			int index = 0;
+			for (Object item : (Collection<?>) value) {
+				flatten(null, path + "[" + index++ + "]", item, items, properties);
+			}
+		} else if (value instanceof Object[]) {
+			final Object[] array = (Object[]) value;
+			for (int i = 0; i < array.length; i++) {
+				flatten(null, path + "[" + i + "]", array[i], items, properties);
+			}
+		} else {
+			final String text = value != null ? DataRootXmlWriter.toText(value) : null;
+			items.put(new DataFieldName(path), text);
+			if (path.indexOf('.') < 0) {
+				properties.put(path, text);
+			}
+		}
+	}
+
+	private Node node(String path) {
+		Node node = root;
+		int start = 0;
+		int end;
+		while ((end = path.indexOf('.', start)) > -1) {
+			node = node.child(path.substring(start, end));
+			start = end + 1;
+		}
+		return node.child(path.substring(start));
+	}
+
+	private static String path(String prefix, String key) {
+		return prefix == null ? key : prefix + "." + key;
+	}
+
+	private static class Node {
+
+		private final Map<String, Node> children = new HashMap<>(4);
+		private boolean field;
+		private String[] tableColumns;
+
+		Node child(String key) {
+			return children.computeIfAbsent(key, k -> new Node());
+		}
+
+		boolean isPlaceholder() {
+			return field || tableColumns != null;
+		}
+
+		Object defaultValue() {
+			if (tableColumns == null) {
+				return UNKNOWN_STRING;
+			}
+
+			final Map<String, Object> tableEntry = new HashMap<>();
+			for (String column : tableColumns) {
+				tableEntry.put(column, UNKNOWN_STRING);
+			}
+			return tableEntry;
+		}
+	}
+}
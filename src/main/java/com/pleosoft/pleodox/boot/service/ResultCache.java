@@ -0,0 +1,629 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+
+/**
+ * Cache of generated documents, keyed by the content hash of the templates, a
+ * canonical hash of the data, the output format and the options. A memory
+ * tier keeps the small documents, a disk tier keeps all of them, both evict
+ * the least recently used documents above their size and drop the ones older
+ * than their time to live. A request with the {@value #BYPASS_OPTION} option
+ * is never cached, neither is a streamed one, its data can be read only once.
+ */
+public class ResultCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ResultCache.class);
+
+	public static final String BYPASS_OPTION = "bypassCache";
+
+	private final Path directory;
+	private final LinkedHashMap<String, MemoryEntry> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<Path, TemplateVersion> templateVersions = new ConcurrentHashMap<>();
+	private long memoryWeight;
+	private long diskWeight;
+
+	private final AtomicLong memoryHitCount = new AtomicLong();
+	private final AtomicLong diskHitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	private long maxMemoryBytes = 64L * 1024 * 1024;
+	private long maxMemoryEntryBytes = 4L * 1024 * 1024;
+	private long maxDiskBytes = 1024L * 1024 * 1024;
+	private Duration memoryTimeToLive = Duration.ofMinutes(10);
+	private Duration diskTimeToLive = Duration.ofHours(24);
+
+	/**
+	 * @param directory the disk tier, {@code null} to keep the documents in
+	 *                  memory only, the documents already in it are indexed
+	 *                  once here
+	 */
+	public ResultCache(Path directory) throws IOException {
+		this.directory = directory;
+		if (directory != null) {
+			Files.createDirectories(directory);
+			loadDiskIndex();
+		}
+	}
+
+	public static boolean isBypassed(TemplateOptions options) {
+		return options != null && (Boolean.TRUE.equals(options.getOption(BYPASS_OPTION))
+				|| Boolean.TRUE.equals(options.getOption(StreamingDocxGenerator.STREAMING_OPTION)));
+	}
+
+	/**
+	 * Hash of every input which changes the generated bytes. The
+	 * {@code templateVersions} are the content hashes of the templates in
+	 * request order.
+	 */
+	public String key(List<String> templateVersions, DataRoot request, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, String namePrefix, Boolean mergePdf, TemplateOptions options) {
+		final MessageDigest digest = sha256();
+		update(digest, "v1");
+		for (String templateVersion : templateVersions) {
+			update(digest, templateVersion);
+		}
+		update(digest, request.getData());
+		update(digest, format.name());
+		update(digest, readOnly);
+		update(digest, protectionPass);
+		update(digest, namePrefix);
+		update(digest, mergePdf);
+
+		if (options != null) {
+			final Map<String, Object> sorted = new TreeMap<>();
+			for (Map.Entry<String, Object> option : options.getOptions().entrySet()) {
+				if (BYPASS_OPTION.equals(option.getKey()) || GenerationTrace.OPTION.equals(option.getKey())) {
+					continue;
+				}
+				final Object value = option.getValue();
+				sorted.put(option.getKey(), value instanceof DocumentConversionEngine
+						? ((DocumentConversionEngine) value).getName()
+						: value);
+			}
+			update(digest, sorted);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Content hash of a template, the file is read again only when its size or
+	 * modification time changed.
+	 */
+	public String templateVersion(Path template) throws IOException {
+		final Path key = template.toAbsolutePath().normalize();
+		final BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+
+		final TemplateVersion cached = templateVersions.get(key);
+		if (cached != null && cached.lastModified == lastModified && cached.size == attributes.size()) {
+			return cached.hash;
+		}
+
+		final String hash;
+		try (InputStream is = Files.newInputStream(key)) {
+			hash = DigestUtils.md5DigestAsHex(is);
+		}
+		templateVersions.put(key, new TemplateVersion(lastModified, attributes.size(), hash));
+		return hash;
+	}
+
+	/**
+	 * @return the cached document, {@code null} on a miss
+	 */
+	public CachedResult get(String key) {
+		Assert.hasText(key, "key parameter cannot be empty");
+
+		final long now = System.currentTimeMillis();
+		synchronized (memory) {
+			final MemoryEntry entry = memory.get(key);
+			if (entry != null) {
+				if (entry.created >= now - memoryTimeToLive.toMillis()) {
+					memoryHitCount.incrementAndGet();
+					return entry.result;
+				}
+				remove(key);
+			}
+		}
+
+		final CachedResult stored = getFromDisk(key, now);
+		if (stored != null) {
+			diskHitCount.incrementAndGet();
+			return stored;
+		}
+
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	public void put(String key, Path document) {
+		Assert.hasText(key, "key parameter cannot be empty");
+		Assert.notNull(document, "document parameter cannot be empty");
+
+		try {
+			final long size = Files.size(document);
+			if (size <= maxMemoryEntryBytes) {
+				putInMemory(key, new CachedResult(document.getFileName().toString(), Files.readAllBytes(document),
+						null));
+			}
+			if (directory != null) {
+				putOnDisk(key, document.getFileName().toString(), document);
+			}
+		} catch (IOException e) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Could not cache the document " + document, e);
+			}
+		}
+	}
+
+	void put(String key, String fileName, DocumentBuffer document) {
+		Assert.hasText(key, "key parameter cannot be empty");
+		Assert.hasText(fileName, "fileName parameter cannot be empty");
+		Assert.notNull(document, "document parameter cannot be empty");
+
+		try {
+			if (document.size() <= maxMemoryEntryBytes) {
+				putInMemory(key, new CachedResult(fileName, document.toByteArray(), null));
+			}
+			if (directory != null) {
+				final Path staged = Files.createTempFile(directory, "staged", ".tmp");
+				try {
+					try (OutputStream os = Files.newOutputStream(staged)) {
+						document.writeTo(os);
+					}
+					putOnDisk(key, fileName, staged);
+				} finally {
+					Files.deleteIfExists(staged);
+				}
+			}
+		} catch (IOException e) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Could not cache the document " + fileName, e);
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (memory) {
+			memory.clear();
+			memoryWeight = 0;
+		}
+		if (directory != null) {
+			synchronized (disk) {
+				disk.clear();
+				diskWeight = 0;
+			}
+			for (Path entry : diskEntries()) {
+				deleteQuietly(entry);
+			}
+		}
+	}
+
+	private void putInMemory(String key, CachedResult result) {
+		synchronized (memory) {
+			remove(key);
+			memory.put(key, new MemoryEntry(result, System.currentTimeMillis()));
+			memoryWeight += result.size();
+
+			final Iterator<MemoryEntry> iterator = memory.values().iterator();
+			while (memoryWeight > maxMemoryBytes && iterator.hasNext()) {
+				memoryWeight -= iterator.next().result.size();
+				iterator.remove();
+			}
+		}
+	}
+
+	private void remove(String key) {
+		final MemoryEntry removed = memory.remove(key);
+		if (removed != null) {
+			memoryWeight -= removed.result.size();
+		}
+	}
+
+	private CachedResult getFromDisk(String key, long now) {
+		if (directory == null) {
+			return null;
+		}
+
+		final DiskEntry entry;
+		synchronized (disk) {
+			entry = disk.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.created < now - diskTimeToLive.toMillis()) {
+				removeFromDisk(key);
+			}
+		}
+		if (entry.created < now - diskTimeToLive.toMillis()) {
+			deleteQuietly(entry.path);
+			return null;
+		}
+
+		try {
+			// the access time survives a restart, the index is sorted by it
+			Files.setLastModifiedTime(entry.file, FileTime.fromMillis(now));
+			final CachedResult result = new CachedResult(entry.file.getFileName().toString(), null, entry.file);
+			if (entry.size <= maxMemoryEntryBytes) {
+				putInMemory(key, new CachedResult(result.getFileName(), Files.readAllBytes(entry.file), null));
+			}
+			return result;
+		} catch (IOException e) {
+			// evicted meanwhile
+			return null;
+		}
+	}
+
+	private void putOnDisk(String key, String fileName, Path document) throws IOException {
+		synchronized (disk) {
+			if (disk.containsKey(key)) {
+				return;
+			}
+		}
+
+		final Path entry = directory.resolve(key);
+		final Path staging = directory.resolve(key + "." + UUID.randomUUID() + ".tmp");
+		Files.createDirectories(staging);
+		Files.copy(document, staging.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+		try {
+			Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+			// stored by a concurrent request
+			deleteQuietly(staging);
+			return;
+		} catch (IOException e) {
+			deleteQuietly(staging);
+			throw e;
+		}
+
+		final Path file = entry.resolve(fileName);
+		final List<DiskEntry> evicted;
+		synchronized (disk) {
+			addToDisk(key, new DiskEntry(entry, file, Files.size(file), System.currentTimeMillis()));
+			evicted = evictFromDisk();
+		}
+		for (DiskEntry stale : evicted) {
+			deleteQuietly(stale.path);
+		}
+	}
+
+	// with the disk lock held
+	private void addToDisk(String key, DiskEntry entry) {
+		removeFromDisk(key);
+		disk.put(key, entry);
+		diskWeight += entry.size;
+	}
+
+	// with the disk lock held
+	private void removeFromDisk(String key) {
+		final DiskEntry removed = disk.remove(key);
+		if (removed != null) {
+			diskWeight -= removed.size;
+		}
+	}
+
+	// with the disk lock held, the files are deleted by the caller
+	private List<DiskEntry> evictFromDisk() {
+		final long expiry = System.currentTimeMillis() - diskTimeToLive.toMillis();
+		final List<DiskEntry> evicted = new ArrayList<>();
+		final Iterator<DiskEntry> iterator = disk.values().iterator();
+		while (iterator.hasNext()) {
+			final DiskEntry entry = iterator.next();
+			if (diskWeight > maxDiskBytes || entry.created < expiry) {
+				iterator.remove();
+				diskWeight -= entry.size;
+				evicted.add(entry);
+			}
+		}
+		return evicted;
+	}
+
+	private void loadDiskIndex() {
+		final List<DiskEntry> entries = new ArrayList<>();
+		for (Path entry : diskEntries()) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(entry)) {
+				for (Path file : files) {
+					final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+					final DiskEntry diskEntry = new DiskEntry(entry, file, attributes.size(),
+							Files.getLastModifiedTime(entry).toMillis());
+					diskEntry.lastAccess = attributes.lastModifiedTime().toMillis();
+					entries.add(diskEntry);
+				}
+			} catch (IOException e) {
+				deleteQuietly(entry);
+			}
+		}
+
+		// staging leftovers of an earlier run
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*.tmp")) {
+			paths.forEach(ResultCache::deleteQuietly);
+		} catch (IOException e1) {
+			;
+		}
+
+		entries.sort(Comparator.comparingLong(entry -> entry.lastAccess));
+		final List<DiskEntry> evicted;
+		synchronized (disk) {
+			for (DiskEntry entry : entries) {
+				addToDisk(entry.path.getFileName().toString(), entry);
+			}
+			evicted = evictFromDisk();
+		}
+		for (DiskEntry stale : evicted) {
+			deleteQuietly(stale.path);
+		}
+	}
+
+	private Collection<Path> diskEntries() {
+		final List<Path> entries = new ArrayList<>();
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory,
+				path -> !path.getFileName().toString().endsWith(".tmp") && Files.isDirectory(path))) {
+			paths.forEach(entries::add);
+		} catch (IOException e) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Could not read the result cache " + directory, e);
+			}
+		}
+		return entries;
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			FileSystemUtils.deleteRecursively(path);
+		} catch (IOException e1) {
+			;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void update(MessageDigest digest, Object value) {
+		// every value is tagged with its type, so "1" and 1 or a list and a map differ
+		if (value == null) {
+			digest.update((byte) 'n');
+		} else if (value instanceof Map) {
+			final Map<Object, Object> map = (Map<Object, Object>) value;
+			final Map<String, Object> sorted = new TreeMap<>();
+			for (Map.Entry<Object, Object> entry : map.entrySet()) {
+				sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+			digest.update((byte) 'm');
+			updateLength(digest, sorted.size());
+			for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+				update(digest, entry.getKey());
+				update(digest, entry.getValue());
+			}
+		} else if (value instanceof Collection) {
+			final Collection<Object> collection = (Collection<Object>) value;
+			digest.update((byte) 'l');
+			updateLength(digest, collection.size());
+			for (Object element : collection) {
+				update(digest, element);
+			}
+		} else {
+			final byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			digest.update((byte) 's');
+			update(digest, value.getClass().getName().getBytes(StandardCharsets.UTF_8));
+			update(digest, bytes);
+		}
+	}
+
+	private static void update(MessageDigest digest, byte[] bytes) {
+		updateLength(digest, bytes.length);
+		digest.update(bytes);
+	}
+
+	private static void updateLength(MessageDigest digest, int length) {
+		digest.update((byte) (length >>> 24));
+		digest.update((byte) (length >>> 16));
+		digest.update((byte) (length >>> 8));
+		digest.update((byte) length);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		final StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	public long getMemoryHitCount() {
+		return memoryHitCount.get();
+	}
+
+	public long getDiskHitCount() {
+		return diskHitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getMemoryWeight() {
+		synchronized (memory) {
+			return memoryWeight;
+		}
+	}
+
+	public void setMaxMemoryBytes(long maxMemoryBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+
+	/**
+	 * Larger documents only go to the disk tier.
+	 */
+	public void setMaxMemoryEntryBytes(long maxMemoryEntryBytes) {
+		this.maxMemoryEntryBytes = maxMemoryEntryBytes;
+	}
+
+	public void setMaxDiskBytes(long maxDiskBytes) {
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	public void setMemoryTimeToLive(Duration memoryTimeToLive) {
+		Assert.notNull(memoryTimeToLive, "memoryTimeToLive parameter cannot be empty");
+		this.memoryTimeToLive = memoryTimeToLive;
+	}
+
+	public void setDiskTimeToLive(Duration diskTimeToLive) {
+		Assert.notNull(diskTimeToLive, "diskTimeToLive parameter cannot be empty");
+		this.diskTimeToLive = diskTimeToLive;
+	}
+
+	/**
+	 * A cached document, held in memory or in a file of the disk tier.
+	 */
+	public static class CachedResult {
+
+		private final String fileName;
+		private final byte[] bytes;
+		private final Path file;
+
+		CachedResult(String fileName, byte[] bytes, Path file) {
+			this.fileName = fileName;
+			this.bytes = bytes;
+			this.file = file;
+		}
+
+		/**
+		 * The file name of the document when it was generated.
+		 */
+		public String getFileName() {
+			return fileName;
+		}
+
+		long size() {
+			return bytes != null ? bytes.length : 0;
+		}
+
+		/**
+		 * @throws NoSuchFileException when the disk entry was evicted since the
+		 *                             lookup, nothing was written then
+		 */
+		public void writeTo(OutputStream os) throws IOException {
+			if (bytes != null) {
+				os.write(bytes);
+			} else {
+				// opened before writing, an open file stays readable when it is evicted meanwhile
+				try (InputStream is = Files.newInputStream(file)) {
+					is.transferTo(os);
+				}
+			}
+		}
+
+		/**
+		 * @throws NoSuchFileException when the disk entry was evicted since the
+		 *                             lookup
+		 */
+		public void writeTo(Path target) throws IOException {
+			if (bytes != null) {
+				Files.write(target, bytes);
+			} else {
+				Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	private static class MemoryEntry {
+
+		private final CachedResult result;
+		private final long created;
+
+		MemoryEntry(CachedResult result, long created) {
+			this.result = result;
+			this.created = created;
+		}
+	}
+
+	private static class DiskEntry {
+
+		private final Path path;
+		private final Path file;
+		private final long size;
+		private final long created;
+		// only read when the index is loaded, afterwards the order of the index
+		// follows the accesses
+		private long lastAccess;
+
+		DiskEntry(Path path, Path file, long size, long created) {
+			this.path = path;
+			this.file = file;
+			this.size = size;
+			this.created = created;
+			this.lastAccess = created;
+		}
+	}
+
+	private static class TemplateVersion {
+
+		private final long lastModified;
+		private final long size;
+		private final String hash;
+
+		TemplateVersion(long lastModified, long size, String hash) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.hash = hash;
+		}
+	}
+}
@@ -0,0 +1,982 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.BaseStream;
+import java.util.zip.Deflater;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+import org.springframework.util.StringUtils;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+import com.pleosoft.pleodox.boot.service.TemplateCache.CachedTemplate;
+
+/**
+ * Generates docx documents without building the docx4j object model. The main
+ * document, its headers and footers are streamed with StAX: MERGEFIELDs and
+ * bound content controls are replaced by their values and a table row is
+ * written once for every item of the collection its placeholders point to.
+ * The other parts are copied raw from the template and the archive is written
+ * while the rows are read, so memory does not grow with the number of rows.
+ * <p>
+ * A row repeats when it is inside an {@code od:repeat} content control or one
+ * of its MERGEFIELDs names a collection without an index, like
+ * {@code lines.amount}. The collection can be a {@link Collection}, an
+ * {@link Iterable}, an {@link Iterator}, a {@link BaseStream} or an array;
+ * iterators and streams are read once.
+ * <p>
+ * Selected for docx output with the {@value #STREAMING_OPTION} option,
+ * register it before the {@link DocxGenerator}. Formatting switches, field
+ * updates and the read-only protection are not applied. Templates with
+ * {@code od:condition} content controls, or with an {@code od:repeat} around
+ * anything but table rows, are declined with a warning and left to the next
+ * generator, their output would differ from the docx4j binding.
+ */
+public class StreamingDocxGenerator implements DocumentGenerator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StreamingDocxGenerator.class);
+
+	public static final String STREAMING_OPTION = "streaming";
+
+	static final String W = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+
+	private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/";
+	private static final QName XML_SPACE = new QName(XMLConstants.XML_NS_URI, "space", "xml");
+	private static final QName W_VAL = new QName(W, "val");
+	private static final QName W_INSTR = new QName(W, "instr");
+	private static final QName W_XPATH = new QName(W, "xpath");
+	private static final QName W_FLD_CHAR_TYPE = new QName(W, "fldCharType");
+
+	private final TemplateCache templateCache;
+	private final XMLInputFactory inputFactory;
+	private final XMLOutputFactory outputFactory;
+	private final XMLEventFactory eventFactory;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	public StreamingDocxGenerator() {
+		this(null);
+	}
+
+	public StreamingDocxGenerator(TemplateCache templateCache) {
+		this.templateCache = templateCache;
+
+		inputFactory = XMLInputFactory.newFactory();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		outputFactory = XMLOutputFactory.newFactory();
+		eventFactory = XMLEventFactory.newFactory();
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		Assert.isTrue(compressionLevel == Deflater.DEFAULT_COMPRESSION
+				|| (compressionLevel >= Deflater.NO_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION),
+				"compressionLevel must be between 0 and 9");
+		this.compressionLevel = compressionLevel;
+	}
+
+	@Override
+	public boolean isTransformable(String templateName, DataRoot dataroot, TemplateOptions options) {
+		if (options == null || !Boolean.TRUE.equals(options.getOption(STREAMING_OPTION))
+				|| Boolean.TRUE.equals(options.getOption("readOnly"))) {
+			return false;
+		}
+
+		final Object outputFormat = options.getOption("outputFormat");
+		if (outputFormat != null && !TemplateOutputFormat.DOCX.equals(outputFormat)) {
+			return false;
+		}
+
+		final String filenameExtension = StringUtils.getFilenameExtension(templateName);
+		if (!"DOCX".equalsIgnoreCase(filenameExtension) && !"DOTX".equalsIgnoreCase(filenameExtension)) {
+			return false;
+		}
+
+		final Path templatePath = (Path) options.getOption("templatePath");
+		final String unsupported = templatePath != null ? unsupportedFeature(templatePath,
+				!Boolean.FALSE.equals(options.getOption("mergeHeadersAndFooters"))) : null;
+		if (unsupported != null) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Template " + templateName + " uses " + unsupported + ", it is not streamed");
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Scans the streamed parts of the template for the content controls the
+	 * streaming does not evaluate.
+	 *
+	 * @return the first one found, {@code null} when there is none
+	 */
+	private String unsupportedFeature(Path templatePath, boolean headersAndFooters) {
+		try {
+			TemplateArchive archive = null;
+			if (templateCache != null) {
+				archive = templateCache.get(templatePath).getTemplateArchive();
+			}
+			if (archive == null) {
+				archive = new TemplateArchive(Files.readAllBytes(templatePath));
+			}
+
+			for (String part : streamedParts(archive, headersAndFooters)) {
+				try (InputStream is = archive.getInputStream(part)) {
+					final String unsupported = is != null ? unsupportedFeature(is) : null;
+					if (unsupported != null) {
+						return unsupported;
+					}
+				}
+			}
+			return null;
+		} catch (Exception e) {
+			// the next generator reports what is wrong with the template
+			return "an unreadable part (" + e + ")";
+		}
+	}
+
+	private String unsupportedFeature(InputStream is) throws XMLStreamException {
+		final XMLStreamReader reader = inputFactory.createXMLStreamReader(is);
+		try {
+			boolean repeatTag = false;
+			boolean repeatContent = false;
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamReader.START_ELEMENT || !W.equals(reader.getNamespaceURI())) {
+					continue;
+				}
+
+				final String localName = reader.getLocalName();
+				if (repeatContent) {
+					// only repeated table rows are streamed
+					if (!"tr".equals(localName)) {
+						return "an od:repeat around " + localName + " elements";
+					}
+					repeatContent = false;
+				}
+
+				if ("sdt".equals(localName)) {
+					repeatTag = false;
+				} else if ("tag".equals(localName)) {
+					final String tag = reader.getAttributeValue(W, "val");
+					if (tag != null && tag.contains("od:condition=")) {
+						return "an od:condition";
+					}
+					repeatTag = tag != null && tag.contains("od:repeat=");
+				} else if ("sdtContent".equals(localName) && repeatTag) {
+					repeatTag = false;
+					repeatContent = true;
+				}
+			}
+			return null;
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public void generate(InputStream templateStream, OutputStream os, DataRoot dataroot, TemplateOptions options)
+			throws Exception {
+		final Path templatePath = (Path) options.getOption("templatePath");
+		final GenerationTrace trace = GenerationTrace.from(options);
+
+		trace.begin(GenerationPhase.TEMPLATE_LOAD);
+		TemplateArchive archive = null;
+		if (templateCache != null && templatePath != null) {
+			final CachedTemplate template = templateCache.get(templatePath);
+			archive = template.getTemplateArchive();
+		}
+		if (archive == null) {
+			archive = new TemplateArchive(templateStream.readAllBytes());
+		}
+		final Set<String> streamedParts = streamedParts(archive,
+				!Boolean.FALSE.equals(options.getOption("mergeHeadersAndFooters")));
+		trace.end();
+
+		trace.begin(GenerationPhase.MAIL_MERGE);
+		final CountingOutputStream counting = new CountingOutputStream(os);
+		final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(counting);
+		zos.setLevel(compressionLevel);
+		final Map<String, Object> data = dataroot.getData();
+		for (String name : archive.getNames()) {
+			if (!streamedParts.contains(name)) {
+				archive.copyRaw(name, zos);
+				continue;
+			}
+
+			zos.putArchiveEntry(new ZipArchiveEntry(name));
+			try (InputStream is = archive.getInputStream(name)) {
+				new PartWriter(data).write(is, zos);
+			}
+			zos.closeArchiveEntry();
+		}
+		// the stream belongs to the caller, only the archive is completed
+		zos.finish();
+		zos.flush();
+		trace.end(counting.getByteCount());
+	}
+
+	/**
+	 * The main document of the package and, unless disabled, its headers and
+	 * footers.
+	 */
+	private Set<String> streamedParts(TemplateArchive archive, boolean headersAndFooters)
+			throws IOException, XMLStreamException {
+		final Set<String> parts = new LinkedHashSet<>();
+		final String mainDocument = relationshipTargets(archive, "", "officeDocument").stream().findFirst()
+				.orElse("word/document.xml");
+		parts.add(mainDocument);
+
+		if (headersAndFooters) {
+			parts.addAll(relationshipTargets(archive, mainDocument, "header"));
+			parts.addAll(relationshipTargets(archive, mainDocument, "footer"));
+		}
+		return parts;
+	}
+
+	private List<String> relationshipTargets(TemplateArchive archive, String source, String type)
+			throws IOException, XMLStreamException {
+		final int slash = source.lastIndexOf('/');
+		final String directory = slash > -1 ? source.substring(0, slash + 1) : "";
+		final String relsName = directory + "_rels/" + source.substring(slash + 1) + ".rels";
+
+		final List<String> targets = new ArrayList<>();
+		try (InputStream is = archive.getInputStream(relsName)) {
+			if (is == null) {
+				return targets;
+			}
+
+			final XMLStreamReader reader = inputFactory.createXMLStreamReader(is);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamReader.START_ELEMENT
+							&& "Relationship".equals(reader.getLocalName())
+							&& (RELATIONSHIPS + type).equals(reader.getAttributeValue(null, "Type"))
+							&& !"External".equals(reader.getAttributeValue(null, "TargetMode"))) {
+						final String path = URI.create("/" + directory)
+								.resolve(reader.getAttributeValue(null, "Target")).getPath();
+						targets.add(path.substring(1));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return targets;
+	}
+
+	private static boolean isW(StartElement element, String localPart) {
+		return localPart.equals(element.getName().getLocalPart()) && W.equals(element.getName().getNamespaceURI());
+	}
+
+	private static boolean isW(XMLEvent event, String localPart) {
+		if (event.isStartElement()) {
+			return isW(event.asStartElement(), localPart);
+		}
+		return event.isEndElement() && localPart.equals(event.asEndElement().getName().getLocalPart())
+				&& W.equals(event.asEndElement().getName().getNamespaceURI());
+	}
+
+	private static String attribute(StartElement element, QName name) {
+		final Attribute attribute = element.getAttributeByName(name);
+		return attribute != null ? attribute.getValue() : null;
+	}
+
+	/**
+	 * The data field of a MERGEFIELD instruction, like
+	 * MailMergeEngine reads it.
+	 */
+	static String mergeFieldName(String instr) {
+		final int index = instr != null ? instr.indexOf("MERGEFIELD") : -1;
+		if (index < 0) {
+			return null;
+		}
+
+		final String name = instr.substring(index + 10).trim();
+		if (name.startsWith("\"")) {
+			final int quote = name.indexOf('"', 1);
+			return quote > -1 ? name.substring(1, quote) : name.substring(1).split(" ", 2)[0];
+		}
+		return name.split(" ", 2)[0];
+	}
+
+	/**
+	 * A step of a placeholder path: {@code name} for maps, {@code index} for
+	 * collections.
+	 */
+	static class Segment {
+
+		final String name;
+		final int index;
+		final boolean indexed;
+
+		Segment(String name, int index, boolean indexed) {
+			this.name = name;
+			this.index = index;
+			this.indexed = indexed;
+		}
+
+		/**
+		 * {@code a.b[2].c} of a MERGEFIELD.
+		 */
+		static List<Segment> ofField(String field) {
+			final List<Segment> segments = new ArrayList<>();
+			for (String step : StringUtils.delimitedListToStringArray(field, ".")) {
+				segments.add(of(step, 0));
+			}
+			return segments;
+		}
+
+		/**
+		 * {@code /ns0:TestXMLNode[1]/ns0:b[3]/ns0:c[1]} of a data binding, the
+		 * root element is dropped and the predicates are one based.
+		 */
+		static List<Segment> ofXPath(String xpath) {
+			final List<Segment> segments = new ArrayList<>();
+			final String[] steps = StringUtils.delimitedListToStringArray(xpath, "/");
+			// the first step is empty, the second one is the root element
+			for (int i = 2; i < steps.length; i++) {
+				final String step = steps[i];
+				segments.add(of(step.substring(step.indexOf(':') + 1), 1));
+			}
+			return segments;
+		}
+
+		private static Segment of(String step, int base) {
+			final int bracket = step.indexOf('[');
+			if (bracket < 0 || !step.endsWith("]")) {
+				return new Segment(step.trim(), 0, false);
+			}
+
+			int index = 0;
+			try {
+				index = Math.max(0, Integer.parseInt(step.substring(bracket + 1, step.length() - 1).trim()) - base);
+			} catch (NumberFormatException e) {
+				// a predicate which is not a position
+			}
+			return new Segment(step.substring(0, bracket).trim(), index, true);
+		}
+	}
+
+	/**
+	 * The item of a repeated row, placeholders below {@code path} are read from
+	 * it.
+	 */
+	private static class Frame {
+
+		final List<String> path;
+		final Object item;
+
+		Frame(List<String> path, Object item) {
+			this.path = path;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * Text elements inside a region show its value: the first one gets the
+	 * value, the following ones are emptied.
+	 */
+	private static class Region {
+
+		final String value;
+		boolean written;
+
+		Region(String value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * An open content control, a removed one is replaced by its content.
+	 */
+	private static class Sdt {
+
+		final boolean removed;
+		final boolean repeat;
+		final Region region;
+
+		Sdt(boolean removed, boolean repeat, Region region) {
+			this.removed = removed;
+			this.repeat = repeat;
+			this.region = region;
+		}
+	}
+
+	/**
+	 * Streams one part, the state lives as long as the part is written.
+	 */
+	private class PartWriter {
+
+		private final Map<String, Object> data;
+		private final Deque<Frame> frames = new ArrayDeque<>();
+		private XMLEventWriter writer;
+
+		// row buffering
+		private List<XMLEvent> row;
+		private int rowDepth;
+
+		// content controls
+		private final Deque<Sdt> sdts = new ArrayDeque<>();
+		private List<XMLEvent> sdtStart;
+		private int repeatDepth;
+
+		// fields
+		private List<XMLEvent> run;
+		private List<XMLEvent> field;
+		private StringBuilder fieldInstr;
+		private int fieldDepth;
+		private int fieldResultStart = -1;
+		private final Deque<Boolean> fldSimples = new ArrayDeque<>();
+
+		// text substitution
+		private final Deque<Region> regions = new ArrayDeque<>();
+		private String prefix = "w";
+		private boolean inText;
+		private int paragraphDepth;
+
+		PartWriter(Map<String, Object> data) {
+			this.data = data;
+		}
+
+		void write(InputStream is, OutputStream os) throws XMLStreamException {
+			final XMLEventReader reader = inputFactory.createXMLEventReader(is);
+			writer = outputFactory.createXMLEventWriter(os, StandardCharsets.UTF_8.name());
+			try {
+				while (reader.hasNext()) {
+					handle(reader.nextEvent());
+				}
+				writer.flush();
+			} finally {
+				reader.close();
+				// does not close the output stream
+				writer.close();
+			}
+		}
+
+		private void handle(XMLEvent event) throws XMLStreamException {
+			if (row != null) {
+				row.add(event);
+				if (isW(event, "tr")) {
+					rowDepth += event.isStartElement() ? 1 : -1;
+					if (rowDepth == 0) {
+						final List<XMLEvent> buffered = row;
+						row = null;
+						writeRow(buffered);
+					}
+				}
+				return;
+			}
+
+			if (event.isStartElement() && isW(event.asStartElement(), "tr")) {
+				row = new ArrayList<>();
+				row.add(event);
+				rowDepth = 1;
+				return;
+			}
+			sdt(event);
+		}
+
+		private void writeRow(List<XMLEvent> events) throws XMLStreamException {
+			final Frame source = rowSource(events, repeatDepth > 0);
+			if (source == null) {
+				replay(events);
+				return;
+			}
+
+			final Iterator<?> items = iterator(source.item);
+			try {
+				while (items.hasNext()) {
+					frames.push(new Frame(source.path, items.next()));
+					try {
+						replay(events);
+					} finally {
+						frames.pop();
+					}
+				}
+			} finally {
+				if (source.item instanceof BaseStream) {
+					((BaseStream<?, ?>) source.item).close();
+				}
+			}
+		}
+
+		private void replay(List<XMLEvent> events) throws XMLStreamException {
+			// the row itself is not buffered again, the nested ones are
+			sdt(events.get(0));
+			for (int i = 1; i < events.size() - 1; i++) {
+				handle(events.get(i));
+			}
+			sdt(events.get(events.size() - 1));
+		}
+
+		/**
+		 * The collection a row repeats over, as a frame of the collection path
+		 * and the collection itself.
+		 */
+		private Frame rowSource(List<XMLEvent> events, boolean repeated) {
+			StringBuilder instr = null;
+			for (XMLEvent event : events) {
+				List<Segment> path = null;
+				if (event.isStartElement()) {
+					final StartElement element = event.asStartElement();
+					if (isW(element, "fldSimple")) {
+						final String name = mergeFieldName(attribute(element, W_INSTR));
+						path = name != null ? Segment.ofField(name) : null;
+					} else if (isW(element, "dataBinding")) {
+						final String xpath = attribute(element, W_XPATH);
+						path = xpath != null ? Segment.ofXPath(xpath) : null;
+					} else if (isW(element, "fldChar")) {
+						final String type = attribute(element, W_FLD_CHAR_TYPE);
+						if ("begin".equals(type)) {
+							instr = new StringBuilder();
+						} else if (instr != null) {
+							final String name = mergeFieldName(instr.toString());
+							path = name != null ? Segment.ofField(name) : null;
+							instr = null;
+						}
+					}
+				} else if (event.isCharacters() && instr != null) {
+					instr.append(event.asCharacters().getData());
+				}
+
+				final Frame source = path != null ? collection(path, repeated) : null;
+				if (source != null) {
+					return source;
+				}
+			}
+			return null;
+		}
+
+		private Frame collection(List<Segment> path, boolean repeated) {
+			final Frame frame = frame(path);
+			final List<String> collectionPath = new ArrayList<>(frame != null ? frame.path : Collections.emptyList());
+			Object value = frame != null ? frame.item : data;
+			for (int i = collectionPath.size(); i < path.size(); i++) {
+				final Segment segment = path.get(i);
+				if (!(value instanceof Map)) {
+					return null;
+				}
+				value = ((Map<?, ?>) value).get(segment.name);
+				collectionPath.add(segment.name);
+				if (isRepeatable(value) && (repeated || !segment.indexed)) {
+					return new Frame(collectionPath, value);
+				}
+				value = element(value, segment);
+			}
+			return null;
+		}
+
+		/**
+		 * The innermost repeated row the path belongs to.
+		 */
+		private Frame frame(List<Segment> path) {
+			for (Frame frame : frames) {
+				if (frame.path.size() <= path.size()) {
+					boolean prefix = true;
+					for (int i = 0; i < frame.path.size() && prefix; i++) {
+						prefix = frame.path.get(i).equals(path.get(i).name);
+					}
+					if (prefix) {
+						return frame;
+					}
+				}
+			}
+			return null;
+		}
+
+		private String value(List<Segment> path) {
+			final Frame frame = frame(path);
+			Object value = frame != null ? frame.item : data;
+			for (int i = frame != null ? frame.path.size() : 0; i < path.size() && value != null; i++) {
+				final Segment segment = path.get(i);
+				value = value instanceof Map ? element(((Map<?, ?>) value).get(segment.name), segment) : null;
+			}
+
+			if (ObjectUtils.isEmpty(value) || value instanceof Map || isRepeatable(value)) {
+				return PlaceholderPathIndex.UNKNOWN_STRING;
+			}
+			return DataRootXmlWriter.toText(value);
+		}
+
+		private void sdt(XMLEvent event) throws XMLStreamException {
+			if (sdtStart != null) {
+				sdtStart.add(event);
+				if (event.isStartElement() && isW(event.asStartElement(), "sdtContent")) {
+					openSdt();
+				}
+				return;
+			}
+
+			if (event.isStartElement() && isW(event.asStartElement(), "sdt")) {
+				sdtStart = new ArrayList<>();
+				sdtStart.add(event);
+				return;
+			}
+
+			final Sdt sdt = sdts.peek();
+			if (sdt != null && sdt.removed && event.isEndElement() && isW(event, "sdtContent")) {
+				if (sdt.region != null) {
+					regions.pop();
+					if (!sdt.region.written && paragraphDepth > 0) {
+						writeValueRun(sdt.region.value, null);
+					}
+				}
+				return;
+			} else if (sdt != null && event.isEndElement() && isW(event, "sdt")) {
+				sdts.pop();
+				if (sdt.repeat) {
+					repeatDepth--;
+				}
+				if (sdt.removed) {
+					return;
+				}
+			}
+			field(event);
+		}
+
+		/**
+		 * Decides on the properties of a content control what happens to it:
+		 * bound ones are replaced by their content showing the value, repeats by
+		 * their content, the others are kept.
+		 */
+		private void openSdt() throws XMLStreamException {
+			final List<XMLEvent> events = sdtStart;
+			sdtStart = null;
+
+			String xpath = null;
+			boolean repeat = false;
+			for (XMLEvent event : events) {
+				if (event.isStartElement()) {
+					final StartElement element = event.asStartElement();
+					if (isW(element, "dataBinding")) {
+						xpath = attribute(element, W_XPATH);
+					} else if (isW(element, "tag")) {
+						final String tag = attribute(element, W_VAL);
+						repeat = tag != null && tag.contains("od:repeat=");
+					}
+				}
+			}
+
+			final Region region = xpath != null ? new Region(value(Segment.ofXPath(xpath))) : null;
+			final Sdt sdt = new Sdt(region != null || repeat, repeat, region);
+			sdts.push(sdt);
+			if (repeat) {
+				repeatDepth++;
+			}
+			if (region != null) {
+				regions.push(region);
+			} else if (!sdt.removed) {
+				for (XMLEvent event : events) {
+					field(event);
+				}
+			}
+		}
+
+		private void field(XMLEvent event) throws XMLStreamException {
+			if (field != null) {
+				if (event.isEndElement() && isW(event, "p")) {
+					// a field over paragraphs is left as it is
+					flushField();
+					text(event);
+					return;
+				}
+				if (run == null && !(event.isStartElement() && isW(event.asStartElement(), "r"))) {
+					field.add(event);
+					return;
+				}
+			}
+
+			if (run != null) {
+				run.add(event);
+				if (event.isEndElement() && isW(event, "r")) {
+					final List<XMLEvent> completed = run;
+					run = null;
+					completedRun(completed);
+				}
+				return;
+			}
+
+			if (event.isStartElement()) {
+				final StartElement element = event.asStartElement();
+				if (isW(element, "r")) {
+					run = new ArrayList<>();
+					run.add(event);
+					return;
+				} else if (isW(element, "fldSimple")) {
+					final String name = mergeFieldName(attribute(element, W_INSTR));
+					fldSimples.push(name != null);
+					if (name != null) {
+						regions.push(new Region(value(Segment.ofField(name))));
+						return;
+					}
+				}
+			} else if (event.isEndElement() && isW(event, "fldSimple")) {
+				if (fldSimples.pop()) {
+					final Region closed = regions.pop();
+					if (!closed.written) {
+						writeValueRun(closed.value, null);
+					}
+					return;
+				}
+			}
+			text(event);
+		}
+
+		private void completedRun(List<XMLEvent> events) throws XMLStreamException {
+			boolean fieldRun = field != null;
+			for (XMLEvent event : events) {
+				if (event.isStartElement() && isW(event.asStartElement(), "fldChar")) {
+					final String type = attribute(event.asStartElement(), W_FLD_CHAR_TYPE);
+					if ("begin".equals(type)) {
+						if (field == null) {
+							field = new ArrayList<>();
+							fieldInstr = new StringBuilder();
+							fieldResultStart = -1;
+						}
+						fieldDepth++;
+						fieldRun = true;
+					} else if ("separate".equals(type) && fieldDepth == 1) {
+						// the run is added to the field below
+						fieldResultStart = field.size();
+					} else if ("end".equals(type)) {
+						fieldDepth--;
+					}
+				} else if (event.isCharacters() && fieldDepth == 1 && fieldResultStart < 0 && field != null) {
+					fieldInstr.append(event.asCharacters().getData());
+				}
+			}
+
+			if (!fieldRun) {
+				for (XMLEvent event : events) {
+					text(event);
+				}
+				return;
+			}
+
+			field.addAll(events);
+			if (fieldDepth == 0) {
+				completedField(events);
+			}
+		}
+
+		/**
+		 * Writes the result runs of a complete complex field, a MERGEFIELD shows
+		 * its value in them, the field code is removed.
+		 */
+		private void completedField(List<XMLEvent> endRun) throws XMLStreamException {
+			final String name = mergeFieldName(fieldInstr.toString());
+			if (name == null) {
+				flushField();
+				return;
+			}
+
+			final List<XMLEvent> events = field;
+			final int resultStart = fieldResultStart;
+			field = null;
+			fieldInstr = null;
+			fieldResultStart = -1;
+
+			final Region region = new Region(value(Segment.ofField(name)));
+			regions.push(region);
+			try {
+				if (resultStart > -1) {
+					// from the run after the separate one to the run before the end one
+					final int resultEnd = events.size() - endRun.size();
+					for (int i = afterRun(events, resultStart); i < resultEnd; i++) {
+						text(events.get(i));
+					}
+				}
+				if (!region.written) {
+					writeValueRun(region.value, events);
+				}
+			} finally {
+				regions.pop();
+			}
+		}
+
+		/**
+		 * The index after the end of the run starting at {@code start}.
+		 */
+		private int afterRun(List<XMLEvent> events, int start) {
+			int i = start;
+			while (i < events.size() && !(events.get(i).isEndElement() && isW(events.get(i), "r"))) {
+				i++;
+			}
+			return i + 1;
+		}
+
+		private void flushField() throws XMLStreamException {
+			final List<XMLEvent> events = field;
+			field = null;
+			fieldInstr = null;
+			fieldDepth = 0;
+			fieldResultStart = -1;
+			for (XMLEvent event : events) {
+				text(event);
+			}
+		}
+
+		/**
+		 * A run showing the value, with the run properties of the first run of
+		 * {@code template} if any.
+		 */
+		private void writeValueRun(String value, List<XMLEvent> template) throws XMLStreamException {
+			writer.add(eventFactory.createStartElement(prefix, W, "r"));
+			if (template != null) {
+				int depth = -1;
+				for (XMLEvent event : template) {
+					if (depth < 0 && event.isStartElement() && isW(event.asStartElement(), "rPr")) {
+						depth = 0;
+					}
+					if (depth >= 0) {
+						writer.add(event);
+						depth += event.isStartElement() ? 1 : event.isEndElement() ? -1 : 0;
+						if (depth == 0) {
+							break;
+						}
+					}
+				}
+			}
+			writer.add(eventFactory.createStartElement(new QName(W, "t", prefix),
+					Collections.singletonList(eventFactory.createAttribute(XML_SPACE, "preserve")).iterator(),
+					null));
+			writer.add(eventFactory.createCharacters(value));
+			writer.add(eventFactory.createEndElement(prefix, W, "t"));
+			writer.add(eventFactory.createEndElement(prefix, W, "r"));
+		}
+
+		private void text(XMLEvent event) throws XMLStreamException {
+			if (event.isStartElement()) {
+				final StartElement element = event.asStartElement();
+				if (isW(element, "p")) {
+					paragraphDepth++;
+					prefix = element.getName().getPrefix();
+				} else if (isW(element, "t") && !regions.isEmpty()) {
+					final Region region = regions.peek();
+					inText = true;
+					writer.add(preserved(element));
+					if (!region.written) {
+						writer.add(eventFactory.createCharacters(region.value));
+						region.written = true;
+					}
+					return;
+				}
+			} else if (event.isEndElement()) {
+				if (isW(event, "p")) {
+					paragraphDepth--;
+				} else if (isW(event, "t")) {
+					inText = false;
+				}
+			} else if (event.isCharacters() && inText) {
+				// the text of a region is its value
+				return;
+			}
+			writer.add(event);
+		}
+
+		private StartElement preserved(StartElement element) {
+			final List<Attribute> attributes = new ArrayList<>();
+			attributes.add(eventFactory.createAttribute(XML_SPACE, "preserve"));
+			for (Iterator<?> it = element.getAttributes(); it.hasNext();) {
+				final Attribute attribute = (Attribute) it.next();
+				if (!XML_SPACE.equals(attribute.getName())) {
+					attributes.add(attribute);
+				}
+			}
+			return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+		}
+	}
+
+	private static boolean isRepeatable(Object value) {
+		return value instanceof Collection || value instanceof Iterable || value instanceof Iterator
+				|| value instanceof BaseStream || value instanceof Object[];
+	}
+
+	/**
+	 * The item at the index of the segment when the value is a list or an
+	 * array, iterators and streams are not read for it.
+	 */
+	private static Object element(Object value, Segment segment) {
+		if (value instanceof List) {
+			final List<?> list = (List<?>) value;
+			return segment.index < list.size() ? list.get(segment.index) : null;
+		} else if (value instanceof Object[]) {
+			final Object[] array = (Object[]) value;
+			return segment.index < array.length ? array[segment.index] : null;
+		} else if (value instanceof Iterator || value instanceof BaseStream) {
+			return null;
+		} else if (value instanceof Iterable) {
+			final Iterator<?> it = ((Iterable<?>) value).iterator();
+			for (int i = 0; i < segment.index && it.hasNext(); i++) {
+				it.next();
+			}
+			return it.hasNext() ? it.next() : null;
+		}
+		return value;
+	}
+
+	private static Iterator<?> iterator(Object value) {
+		if (value instanceof Iterable) {
+			return ((Iterable<?>) value).iterator();
+		} else if (value instanceof Iterator) {
+			return (Iterator<?>) value;
+		} else if (value instanceof BaseStream) {
+			return ((BaseStream<?, ?>) value).iterator();
+		}
+		return Arrays.asList((Object[]) value).iterator();
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+
+/**
+ * The compressed entries of a cached template archive, which are copied to a
+ * saved document as they are, without inflating and deflating them again.
+ * Reads of the raw entries are synchronized on the archive, one instance
+ * serves concurrent saves.
+ */
+class TemplateArchive {
+
+	private final ZipFile zipFile;
+	private final Map<String, ZipArchiveEntry> entries = new LinkedHashMap<>();
+
+	TemplateArchive(byte[] archive) throws IOException {
+		zipFile = new ZipFile(new SeekableInMemoryByteChannel(archive));
+		final Enumeration<ZipArchiveEntry> archiveEntries = zipFile.getEntries();
+		while (archiveEntries.hasMoreElements()) {
+			final ZipArchiveEntry entry = archiveEntries.nextElement();
+			if (!entry.isDirectory()) {
+				entries.put(entry.getName(), entry);
+			}
+		}
+	}
+
+	/**
+	 * @return the entry names in archive order
+	 */
+	Set<String> getNames() {
+		return entries.keySet();
+	}
+
+	/**
+	 * @return the inflated entry, {@code null} if the archive has no such entry
+	 */
+	InputStream getInputStream(String name) throws IOException {
+		final ZipArchiveEntry entry = entries.get(name);
+		return entry == null ? null : zipFile.getInputStream(entry);
+	}
+
+	/**
+	 * @return {@code false} if the archive has no such entry
+	 */
+	boolean copyRaw(String name, ZipArchiveOutputStream zos) throws IOException {
+		final ZipArchiveEntry entry = entries.get(name);
+		if (entry == null) {
+			return false;
+		}
+
+		try (InputStream raw = zipFile.getRawInputStream(entry)) {
+			zos.addRawArchiveEntry(entry, raw);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.docx4j.openpackaging.exceptions.Docx4JException;
+import org.docx4j.openpackaging.io3.Load3;
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+
+/**
+ * LRU cache of unzipped templates keyed by path and validated against the file
+ * modification time and size. {@link #getPackage(Path)} returns a private copy
+ * of the package for each caller, parts are unmarshalled lazily on the copy.
+ */
+public class TemplateCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TemplateCache.class);
+
+	public static final long DEFAULT_MAX_WEIGHT = 256L * 1024 * 1024;
+
+	private final int maxEntries;
+	private final long maxWeight;
+	private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private final LinkedHashMap<Path, CachedTemplate> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long weight;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public TemplateCache() {
+		this(Integer.MAX_VALUE, DEFAULT_MAX_WEIGHT);
+	}
+
+	public TemplateCache(int maxEntries, long maxWeight) {
+		Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+		Assert.isTrue(maxWeight > 0, "maxWeight must be positive");
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Deflate level of the parts changed by a generation, applies to templates
+	 * loaded afterwards. Untouched parts keep their compression from the template.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		Assert.isTrue(compressionLevel == Deflater.DEFAULT_COMPRESSION
+				|| (compressionLevel >= Deflater.NO_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION),
+				"compressionLevel must be between 0 and 9");
+		this.compressionLevel = compressionLevel;
+	}
+
+	public WordprocessingMLPackage getPackage(Path template) throws IOException, Docx4JException {
+		return get(template).newPackage();
+	}
+
+	public CachedTemplate get(Path template) throws IOException {
+		Assert.notNull(template, "template parameter cannot be empty");
+
+		final Path key = template.toAbsolutePath().normalize();
+		final BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+
+		synchronized (entries) {
+			CachedTemplate cached = entries.get(key);
+			if (cached != null && cached.lastModified == lastModified && cached.size == attributes.size()) {
+				hitCount.incrementAndGet();
+				return cached;
+			}
+		}
+
+		missCount.incrementAndGet();
+		final CachedTemplate loaded = load(key, lastModified);
+		synchronized (entries) {
+			CachedTemplate previous = entries.put(key, loaded);
+			if (previous != null) {
+				weight -= previous.getWeight();
+			}
+			weight += loaded.getWeight();
+			evict();
+		}
+		return loaded;
+	}
+
+	public void invalidate(Path template) {
+		final Path key = template.toAbsolutePath().normalize();
+		synchronized (entries) {
+			CachedTemplate removed = entries.remove(key);
+			if (removed != null) {
+				weight -= removed.getWeight();
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+			weight = 0;
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getWeight() {
+		synchronized (entries) {
+			return weight;
+		}
+	}
+
+	private void evict() {
+		Iterator<CachedTemplate> iterator = entries.values().iterator();
+		// the most recently loaded entry always stays, even if it is heavier than the limit
+		while (entries.size() > 1 && (weight > maxWeight || entries.size() > maxEntries) && iterator.hasNext()) {
+			CachedTemplate eldest = iterator.next();
+			iterator.remove();
+			weight -= eldest.getWeight();
+			evictionCount.incrementAndGet();
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Evicted template " + eldest.getPath() + " from cache");
+			}
+		}
+	}
+
+	private CachedTemplate load(Path template, long lastModified) throws IOException {
+		final byte[] archive = Files.readAllBytes(template);
+		final Map<String, byte[]> parts = new HashMap<>();
+
+		long inflated = 0;
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				if (!entry.isDirectory()) {
+					byte[] bytes = zis.readAllBytes();
+					parts.put(entry.getName(), bytes);
+					inflated += bytes.length;
+				}
+			}
+		}
+
+		if (parts.isEmpty()) {
+			throw new IOException("Template " + template + " is not a zip archive");
+		}
+
+		return new CachedTemplate(template, lastModified, archive, Collections.unmodifiableMap(parts),
+				DigestUtils.md5DigestAsHex(archive), archive.length + inflated, compressionLevel);
+	}
+
+	public static class CachedTemplate {
+
+		private final Path path;
+		private final long lastModified;
+		private final long size;
+		private final byte[] archive;
+		private final Map<String, byte[]> parts;
+		private final String contentHash;
+		private final long weight;
+		private final int compressionLevel;
+		private volatile TemplateArchive rawArchive;
+
+		CachedTemplate(Path path, long lastModified, byte[] archive, Map<String, byte[]> parts, String contentHash,
+				long weight, int compressionLevel) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.size = archive.length;
+			this.archive = archive;
+			this.parts = parts;
+			this.contentHash = contentHash;
+			this.weight = weight;
+			this.compressionLevel = compressionLevel;
+		}
+
+		public WordprocessingMLPackage newPackage() throws Docx4JException {
+			WordprocessingMLPackage wordMLPackage = (WordprocessingMLPackage) new Load3(
+					new TemplatePartStore(parts, getTemplateArchive(), compressionLevel)).get();
+			wordMLPackage.setNew(false);
+			return wordMLPackage;
+		}
+
+		/**
+		 * @return the raw entries of the template, {@code null} if the archive
+		 *         cannot be read that way
+		 */
+		TemplateArchive getTemplateArchive() {
+			TemplateArchive current = rawArchive;
+			if (current == null) {
+				try {
+					current = new TemplateArchive(archive);
+				} catch (IOException e) {
+					// the parts are deflated again on save
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Cannot copy the entries of template " + path + " raw", e);
+					}
+					return null;
+				}
+				rawArchive = current;
+			}
+			return current;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getContentHash() {
+			return contentHash;
+		}
+
+		public long getWeight() {
+			return weight;
+		}
+
+		public ByteArrayInputStream getArchiveStream() {
+			return new ByteArrayInputStream(archive);
+		}
+	}
+}
@@ -23,4 +23,8 @@ public class TemplateFailedException extends RuntimeException {
 	public TemplateFailedException(Throwable cause) {
 		super(cause);
 	}
+
+	public TemplateFailedException(String message) {
+		super(message);
+	}
 }
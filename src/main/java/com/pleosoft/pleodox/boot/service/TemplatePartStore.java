@@ -0,0 +1,224 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.docx4j.XmlUtils;
+import org.docx4j.openpackaging.contenttype.ContentTypeManager;
+import org.docx4j.openpackaging.exceptions.Docx4JException;
+import org.docx4j.openpackaging.io3.stores.PartStore;
+import org.docx4j.openpackaging.parts.CustomXmlDataStoragePart;
+import org.docx4j.openpackaging.parts.JaxbXmlPart;
+import org.docx4j.openpackaging.parts.Part;
+import org.docx4j.openpackaging.parts.XmlPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.BinaryPart;
+
+/**
+ * Read-only {@link PartStore} over the already inflated parts of a cached
+ * template. Every package copy gets its own instance, the part bytes are shared.
+ * On save the parts which were never unmarshalled or loaded, media, fonts,
+ * embeddings and untouched XML, are copied compressed from the template
+ * archive. Only the parts changed by the generation are serialised and
+ * deflated again, with the compression level of the template cache.
+ */
+class TemplatePartStore implements PartStore {
+
+	private final Map<String, byte[]> parts;
+	private final PartStore reloaded;
+	private final Set<String> rawEntries;
+	private final TemplateArchive archive;
+	private final int compressionLevel;
+
+	private ZipArchiveOutputStream zos;
+	private Set<String> copied;
+
+	TemplatePartStore(Map<String, byte[]> parts, TemplateArchive archive, int compressionLevel) {
+		this(parts, null, null, archive, compressionLevel);
+	}
+
+	private TemplatePartStore(Map<String, byte[]> parts, PartStore reloaded, Set<String> rawEntries,
+			TemplateArchive archive, int compressionLevel) {
+		this.parts = parts;
+		this.reloaded = reloaded;
+		this.rawEntries = rawEntries;
+		this.archive = archive;
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * The binding saves the package and loads it again from the saved bytes. The
+	 * parts which were copied raw by that save are still the template's and stay
+	 * eligible for the raw copy, the others are read from the reloaded store.
+	 */
+	TemplatePartStore reloaded(PartStore reloadedStore) {
+		return new TemplatePartStore(null, reloadedStore, copied == null ? new HashSet<>() : copied, archive,
+				compressionLevel);
+	}
+
+	@Override
+	public InputStream loadPart(String partName) throws Docx4JException {
+		if (reloaded != null) {
+			return reloaded.loadPart(partName);
+		}
+		byte[] bytes = parts.get(partName);
+		return bytes == null ? null : new ByteArrayInputStream(bytes);
+	}
+
+	@Override
+	public long getPartSize(String partName) throws Docx4JException {
+		if (reloaded != null) {
+			return reloaded.getPartSize(partName);
+		}
+		byte[] bytes = parts.get(partName);
+		return bytes == null ? -1L : bytes.length;
+	}
+
+	@Override
+	public void setOutputStream(OutputStream os) throws Docx4JException {
+		zos = new ZipArchiveOutputStream(os);
+		zos.setLevel(compressionLevel);
+		copied = new HashSet<>();
+	}
+
+	@Override
+	public void saveContentTypes(ContentTypeManager ctm) throws Docx4JException {
+		try {
+			zos.putArchiveEntry(new ZipArchiveEntry("[Content_Types].xml"));
+			ctm.marshal(zos);
+			zos.closeArchiveEntry();
+		} catch (Exception e) {
+			throw new Docx4JException("Error marshalling Content_Types", e);
+		}
+	}
+
+	@Override
+	public void saveJaxbXmlPart(JaxbXmlPart part) throws Docx4JException {
+		final String name = zipName(part);
+		try {
+			if (part.isUnmarshalled()) {
+				zos.putArchiveEntry(new ZipArchiveEntry(name));
+				part.marshal(zos);
+				zos.closeArchiveEntry();
+			} else {
+				copy(name);
+			}
+		} catch (Docx4JException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new Docx4JException("Failed to put " + part.getPartName() + " in zip file", e);
+		}
+	}
+
+	@Override
+	public void saveCustomXmlDataStoragePart(CustomXmlDataStoragePart part) throws Docx4JException {
+		try {
+			zos.putArchiveEntry(new ZipArchiveEntry(zipName(part)));
+			part.getData().writeDocument(zos);
+			zos.closeArchiveEntry();
+		} catch (Exception e) {
+			throw new Docx4JException("Error marshalling CustomXmlDataStoragePart " + part.getPartName(), e);
+		}
+	}
+
+	@Override
+	public void saveXmlPart(XmlPart part) throws Docx4JException {
+		try {
+			zos.putArchiveEntry(new ZipArchiveEntry(zipName(part)));
+			XmlUtils.getTransformerFactory().newTransformer().transform(new DOMSource(part.getDocument()),
+					new StreamResult(zos));
+			zos.closeArchiveEntry();
+		} catch (Exception e) {
+			throw new Docx4JException("Error marshalling XmlPart " + part.getPartName(), e);
+		}
+	}
+
+	@Override
+	public void saveBinaryPart(Part part) throws Docx4JException {
+		final String name = zipName(part);
+		try {
+			if (part instanceof BinaryPart && ((BinaryPart) part).isLoaded()) {
+				zos.putArchiveEntry(new ZipArchiveEntry(name));
+				zos.write(((BinaryPart) part).getBytes());
+				zos.closeArchiveEntry();
+			} else {
+				copy(name);
+			}
+		} catch (Docx4JException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new Docx4JException("Failed to put " + part.getPartName() + " in zip file", e);
+		}
+	}
+
+	private void copy(String name) throws IOException, Docx4JException {
+		if (archive != null && (rawEntries == null || rawEntries.contains(name)) && archive.copyRaw(name, zos)) {
+			copied.add(name);
+			return;
+		}
+
+		try (InputStream is = loadPart(name)) {
+			if (is == null) {
+				throw new Docx4JException("part '" + name + "' not found in the template");
+			}
+			zos.putArchiveEntry(new ZipArchiveEntry(name));
+			is.transferTo(zos);
+			zos.closeArchiveEntry();
+		}
+	}
+
+	private static String zipName(Part part) {
+		final String name = part.getPartName().getName();
+		return name.startsWith("/") ? name.substring(1) : name;
+	}
+
+	@Override
+	public void finishSave() throws Docx4JException {
+		try {
+			// the stream belongs to the caller, only the archive is completed
+			zos.finish();
+			zos.flush();
+		} catch (IOException e) {
+			throw new Docx4JException("Error closing zip file", e);
+		} finally {
+			zos = null;
+		}
+	}
+
+	@Override
+	public void setSourcePartStore(PartStore partStore) {
+		// the cached parts are the source
+	}
+
+	@Override
+	public void dispose() {
+		if (reloaded != null) {
+			reloaded.dispose();
+		}
+	}
+}
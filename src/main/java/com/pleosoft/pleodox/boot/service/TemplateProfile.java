@@ -0,0 +1,232 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
+import org.docx4j.openpackaging.parts.JaxbXmlPart;
+import org.docx4j.openpackaging.parts.Part;
+import org.docx4j.openpackaging.parts.WordprocessingML.EndnotesPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.FooterPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.FootnotesPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.HeaderPart;
+import org.docx4j.openpackaging.parts.WordprocessingML.MainDocumentPart;
+
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+
+/**
+ * The features a template uses, analysed once per template version from its
+ * document, header, footer and note parts. The generation skips the phases
+ * the template cannot benefit from: the mail merge without MERGEFIELDs, the
+ * field update and the custom document properties without DOCPROPERTY fields
+ * and the data binding without content controls. The fields are recognised
+ * from their joined instructions, Word may split one across several runs. The
+ * {@value #FULL_PIPELINE_OPTION} option runs every phase regardless.
+ */
+public class TemplateProfile {
+
+	public static final String FULL_PIPELINE_OPTION = "fullPipeline";
+
+	public static final TemplateProfile FULL = new TemplateProfile(true, true, true, true);
+
+	private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+
+	private final boolean mergeFields;
+	private final boolean docPropertyFields;
+	private final boolean contentControls;
+	private final boolean bindings;
+
+	TemplateProfile(boolean mergeFields, boolean docPropertyFields, boolean contentControls, boolean bindings) {
+		this.mergeFields = mergeFields;
+		this.docPropertyFields = docPropertyFields;
+		this.contentControls = contentControls;
+		this.bindings = bindings;
+	}
+
+	public static boolean isFullPipeline(TemplateOptions options) {
+		return options != null && Boolean.TRUE.equals(options.getOption(FULL_PIPELINE_OPTION));
+	}
+
+	public static TemplateProfile analyse(WordprocessingMLPackage wordMLPackage) {
+		boolean mergeFields = false;
+		boolean docPropertyFields = false;
+		boolean contentControls = false;
+		boolean bindings = false;
+
+		for (Part part : wordMLPackage.getParts().getParts().values()) {
+			if (!(part instanceof MainDocumentPart || part instanceof HeaderPart || part instanceof FooterPart
+					|| part instanceof FootnotesPart || part instanceof EndnotesPart)) {
+				continue;
+			}
+
+			final String xml = ((JaxbXmlPart<?>) part).getXML();
+			if (xml == null) {
+				// a part which cannot be read gets every phase
+				return FULL;
+			}
+
+			final List<String> instructions;
+			try {
+				instructions = fieldInstructions(xml);
+			} catch (XMLStreamException e) {
+				return FULL;
+			}
+			for (String instruction : instructions) {
+				final String upper = instruction.toUpperCase(Locale.ROOT);
+				mergeFields |= upper.contains("MERGEFIELD");
+				docPropertyFields |= upper.contains("DOCPROPERTY");
+			}
+			contentControls |= xml.contains(":sdt>") || xml.contains(":sdt ");
+			bindings |= xml.contains("dataBinding") || xml.contains("od:xpath") || xml.contains("od:repeat")
+					|| xml.contains("od:condition");
+		}
+		return new TemplateProfile(mergeFields, docPropertyFields, contentControls, bindings);
+	}
+
+	/**
+	 * The instructions of the simple and complex fields of a part, the
+	 * instrText runs of a complex field joined, nested fields included.
+	 */
+	static List<String> fieldInstructions(String xml) throws XMLStreamException {
+		final List<String> instructions = new ArrayList<>();
+		// the instructions of the open complex fields, innermost first
+		final Deque<StringBuilder> open = new ArrayDeque<>();
+		boolean inInstrText = false;
+
+		final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(xml));
+		try {
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					if (!StreamingDocxGenerator.W.equals(reader.getNamespaceURI())) {
+						break;
+					}
+					if ("fldSimple".equals(reader.getLocalName())) {
+						final String instr = reader.getAttributeValue(StreamingDocxGenerator.W, "instr");
+						if (instr != null) {
+							instructions.add(instr);
+						}
+					} else if ("fldChar".equals(reader.getLocalName())) {
+						final String type = reader.getAttributeValue(StreamingDocxGenerator.W, "fldCharType");
+						if ("begin".equals(type)) {
+							open.push(new StringBuilder());
+						} else if ("separate".equals(type) && !open.isEmpty()) {
+							// the result follows, the instruction is complete
+							addInstruction(instructions, open.peek());
+						} else if ("end".equals(type) && !open.isEmpty()) {
+							addInstruction(instructions, open.pop());
+						}
+					} else if ("instrText".equals(reader.getLocalName())) {
+						inInstrText = true;
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+					if (inInstrText && !open.isEmpty()) {
+						open.peek().append(reader.getText());
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if ("instrText".equals(reader.getLocalName())) {
+						inInstrText = false;
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		// fields left open by a broken part still count
+		while (!open.isEmpty()) {
+			addInstruction(instructions, open.pop());
+		}
+		return instructions;
+	}
+
+	private static void addInstruction(List<String> instructions, StringBuilder instruction) {
+		if (instruction.length() > 0) {
+			instructions.add(instruction.toString());
+			instruction.setLength(0);
+		}
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newFactory();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
+	public boolean hasMergeFields() {
+		return mergeFields;
+	}
+
+	public boolean hasDocPropertyFields() {
+		return docPropertyFields;
+	}
+
+	public boolean hasContentControls() {
+		return contentControls;
+	}
+
+	public boolean hasBindings() {
+		return bindings;
+	}
+
+	public boolean needsMailMerge() {
+		return mergeFields;
+	}
+
+	/**
+	 * {@code FieldUpdater} only updates DOCPROPERTY fields, which read the
+	 * custom document properties.
+	 */
+	public boolean needsFieldUpdate() {
+		return docPropertyFields;
+	}
+
+	public boolean needsDocProperties() {
+		return docPropertyFields;
+	}
+
+	/**
+	 * The binding also removes the content controls, a template with unbound
+	 * ones still goes through it.
+	 */
+	public boolean needsBinding() {
+		return bindings || contentControls;
+	}
+
+	@Override
+	public String toString() {
+		return "mergeFields=" + mergeFields + ", docPropertyFields=" + docPropertyFields + ", contentControls="
+				+ contentControls + ", bindings=" + bindings;
+	}
+}
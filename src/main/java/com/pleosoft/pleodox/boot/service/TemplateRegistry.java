@@ -0,0 +1,354 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.docx4j.Docx4J;
+import org.docx4j.openpackaging.exceptions.Docx4JException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
+
+import com.pleosoft.pleodox.boot.data.PlaceholdersData;
+import com.pleosoft.pleodox.boot.service.TemplateCache.CachedTemplate;
+
+/**
+ * In-memory index of the template folder, nested folders included. Every
+ * docx and dotx template is kept with its size, modification time, content
+ * hash and placeholders. After {@link #start()} a {@link WatchService} keeps
+ * the index up to date: a created or modified template is parsed once, a
+ * deleted one is dropped, and the template cache, the placeholder indexes and
+ * the registered listeners are invalidated for it. A template which cannot be
+ * parsed, e.g. while it is being saved, keeps its previous version.
+ */
+public class TemplateRegistry implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TemplateRegistry.class);
+
+	private final Path templateLocation;
+	private final DocumentGenerateService templatingService;
+	private final Map<Path, TemplateEntry> entries = new ConcurrentHashMap<>();
+	private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+	private final List<Consumer<Path>> invalidationListeners = new CopyOnWriteArrayList<>();
+
+	private TemplateCache templateCache;
+	private WatchService watchService;
+	private Thread watcher;
+
+	public TemplateRegistry(Path templateLocation, DocumentGenerateService templatingService) {
+		Assert.notNull(templateLocation, "templateLocation parameter cannot be empty");
+		Assert.notNull(templatingService, "templatingService parameter cannot be empty");
+		this.templateLocation = templateLocation.toAbsolutePath().normalize();
+		this.templatingService = templatingService;
+	}
+
+	/**
+	 * Indexes the whole template folder and starts watching it.
+	 */
+	public synchronized void start() throws IOException {
+		Assert.state(watchService == null, "The template registry is already started");
+
+		watchService = templateLocation.getFileSystem().newWatchService();
+		scan(templateLocation);
+
+		watcher = new Thread(this::watch, "pleodox-template-registry");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+			watchService = null;
+			watchedDirectories.clear();
+		}
+	}
+
+	/**
+	 * Indexes the whole template folder again, without watching it.
+	 */
+	public void rescan() throws IOException {
+		for (Path path : new ArrayList<>(entries.keySet())) {
+			if (!Files.isRegularFile(path)) {
+				remove(path);
+			}
+		}
+		scan(templateLocation);
+	}
+
+	public List<TemplateEntry> getTemplates() {
+		return entries.values().stream().sorted(Comparator.comparing(TemplateEntry::getName))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * The templates, nested folders included, without touching the disk.
+	 * {@code DefaultStorageService.loadAllTemplates()} returns this list once
+	 * the registry is set on it.
+	 */
+	public List<Path> loadAllTemplates() {
+		return getTemplates().stream().map(TemplateEntry::getPath).collect(Collectors.toList());
+	}
+
+	/**
+	 * @param templateName the name relative to the template folder, as it is
+	 *                     passed to the {@link TemplatesService}
+	 */
+	public TemplateEntry getTemplate(String templateName) {
+		Assert.hasText(templateName, "templateName parameter cannot be empty");
+		return entries.get(templateLocation.resolve(StringUtils.cleanPath(templateName)).normalize());
+	}
+
+	public int getSize() {
+		return entries.size();
+	}
+
+	public void addInvalidationListener(Consumer<Path> listener) {
+		Assert.notNull(listener, "listener parameter cannot be empty");
+		invalidationListeners.add(listener);
+	}
+
+	public void setTemplateCache(TemplateCache templateCache) {
+		this.templateCache = templateCache;
+	}
+
+	private void scan(Path directory) throws IOException {
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				register(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					update(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void register(Path directory) throws IOException {
+		final WatchService current = watchService;
+		if (current != null) {
+			watchedDirectories.put(directory.register(current, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), directory);
+		}
+	}
+
+	private void watch() {
+		final WatchService current = watchService;
+		while (current != null) {
+			final WatchKey key;
+			try {
+				key = current.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			final Path directory = watchedDirectories.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				try {
+					if (event.kind() == OVERFLOW || directory == null) {
+						rescan();
+					} else {
+						handle(event.kind(), directory.resolve((Path) event.context()).normalize());
+					}
+				} catch (Exception e) {
+					if (LOG.isWarnEnabled()) {
+						LOG.warn("Could not update the template registry for " + event.context(), e);
+					}
+				}
+			}
+
+			if (!key.reset()) {
+				watchedDirectories.remove(key);
+			}
+		}
+	}
+
+	private void handle(WatchEvent.Kind<?> kind, Path path) throws IOException {
+		if (kind == ENTRY_DELETE) {
+			remove(path);
+		} else if (Files.isDirectory(path)) {
+			// files may already be inside a directory which was moved in
+			scan(path);
+		} else {
+			update(path);
+		}
+	}
+
+	private void update(Path path) {
+		if (!isTemplate(path)) {
+			return;
+		}
+
+		final Path key = path.toAbsolutePath().normalize();
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+			final TemplateEntry existing = entries.get(key);
+			if (existing != null && existing.lastModified == attributes.lastModifiedTime().toMillis()
+					&& existing.size == attributes.size()) {
+				return;
+			}
+
+			final TemplateEntry entry = load(key, attributes);
+			final TemplateEntry previous = entries.put(key, entry);
+			if (previous != null && !previous.contentHash.equals(entry.contentHash)) {
+				invalidate(key, previous);
+			}
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Indexed template " + entry.getName());
+			}
+		} catch (Exception e) {
+			// a template which is still being written is indexed on its next
+			// modification, until then the previous version stays
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Could not index template " + key + (entries.containsKey(key)
+						? ", keeping the previous version" : ""), e);
+			}
+		}
+	}
+
+	private void remove(Path path) {
+		final Path removed = path.toAbsolutePath().normalize();
+		for (Path key : new ArrayList<>(entries.keySet())) {
+			// a deleted directory takes all its templates with it
+			if (key.startsWith(removed)) {
+				final TemplateEntry previous = entries.remove(key);
+				if (previous != null) {
+					invalidate(key, previous);
+				}
+			}
+		}
+	}
+
+	private void invalidate(Path path, TemplateEntry previous) {
+		if (templateCache != null) {
+			templateCache.invalidate(path);
+		}
+		templatingService.evictFields(previous.contentHash);
+		for (Consumer<Path> listener : invalidationListeners) {
+			listener.accept(path);
+		}
+	}
+
+	private TemplateEntry load(Path path, BasicFileAttributes attributes) throws IOException, Docx4JException {
+		final String contentHash;
+		final PlaceholdersData placeholders;
+		if (templateCache != null) {
+			templateCache.invalidate(path);
+			final CachedTemplate template = templateCache.get(path);
+			contentHash = template.getContentHash();
+			placeholders = templatingService.retrieveFields(template);
+		} else {
+			final byte[] archive = Files.readAllBytes(path);
+			contentHash = DigestUtils.md5DigestAsHex(archive);
+			placeholders = templatingService
+					.retrieveFields(Docx4J.load(new ByteArrayInputStream(archive)), contentHash);
+		}
+
+		final String name = StringUtils.cleanPath(templateLocation.relativize(path).toString());
+		return new TemplateEntry(name, path, attributes.size(), attributes.lastModifiedTime().toMillis(),
+				contentHash, placeholders);
+	}
+
+	private static boolean isTemplate(Path path) {
+		final String filename = path.getFileName().toString();
+		// office lock files share the extension of the template
+		if (filename.startsWith("~$") || filename.startsWith(".")) {
+			return false;
+		}
+		final String extension = StringUtils.getFilenameExtension(filename);
+		return "docx".equalsIgnoreCase(extension) || "dotx".equalsIgnoreCase(extension);
+	}
+
+	public static class TemplateEntry {
+
+		private final String name;
+		private final Path path;
+		private final long size;
+		private final long lastModified;
+		private final String contentHash;
+		private final PlaceholdersData placeholders;
+
+		TemplateEntry(String name, Path path, long size, long lastModified, String contentHash,
+				PlaceholdersData placeholders) {
+			this.name = name;
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentHash = contentHash;
+			this.placeholders = placeholders;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getContentHash() {
+			return contentHash;
+		}
+
+		public PlaceholdersData getPlaceholders() {
+			return placeholders;
+		}
+	}
+}
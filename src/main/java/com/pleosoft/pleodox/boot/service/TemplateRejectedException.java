@@ -0,0 +1,44 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+/**
+ * A request shed by the {@link AdaptiveConcurrencyLimiter} before any work was
+ * done for it, the caller may retry it later.
+ */
+public class TemplateRejectedException extends TemplateFailedException {
+
+	private static final long serialVersionUID = -3615470954287431862L;
+
+	public enum Reason {
+		/** the wait queue was full */
+		QUEUE_FULL,
+		/** no permit was free before the deadline of the request */
+		DEADLINE
+	}
+
+	private final Reason reason;
+
+	public TemplateRejectedException(Reason reason, String message) {
+		super(message);
+		this.reason = reason;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+}
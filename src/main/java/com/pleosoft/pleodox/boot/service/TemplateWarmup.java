@@ -0,0 +1,219 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.pleosoft.pleodox.boot.data.DataRoot;
+import com.pleosoft.pleodox.boot.data.PlaceholdersData;
+import com.pleosoft.pleodox.boot.data.TemplateOptions;
+import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+import com.pleosoft.pleodox.boot.service.TemplateRegistry.TemplateEntry;
+import com.pleosoft.pleodox.boot.storage.DefaultStorageService;
+
+/**
+ * Loads every stored template into the template cache, analyses its
+ * placeholders and renders it a few times with synthetic data, so the docx4j
+ * JAXB contexts, the placeholder indexes and the JIT are warm before the first
+ * request. {@link #isReady()} only turns true once the warm-up completed,
+ * whether some templates failed or not, but not when the templates could not
+ * be listed, the report then keeps the cause.
+ */
+public class TemplateWarmup {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TemplateWarmup.class);
+
+	private final TemplatesService templatesService;
+	private final DocumentGenerateService templatingService;
+	private final DefaultStorageService storageService;
+
+	private TemplateCache templateCache;
+	private TemplateRegistry templateRegistry;
+	private int renderCount = 3;
+	private List<TemplateOutputFormat> formats = Collections.singletonList(TemplateOutputFormat.DOCX);
+
+	private volatile boolean ready;
+	private volatile TemplateWarmupReport report;
+
+	public TemplateWarmup(TemplatesService templatesService, DocumentGenerateService templatingService,
+			DefaultStorageService storageService) {
+		Assert.notNull(templatesService, "templatesService parameter cannot be empty");
+		Assert.notNull(templatingService, "templatingService parameter cannot be empty");
+		Assert.notNull(storageService, "storageService parameter cannot be empty");
+		this.templatesService = templatesService;
+		this.templatingService = templatingService;
+		this.storageService = storageService;
+	}
+
+	public TemplateWarmupReport run() {
+		final TemplateWarmupReport current = new TemplateWarmupReport();
+		report = current;
+		try {
+			if (templateRegistry != null) {
+				for (TemplateEntry template : templateRegistry.getTemplates()) {
+					warmup(template.getName(), template.getPath(), template.getPlaceholders(), current);
+				}
+			} else {
+				for (Path template : storageService.loadAllTemplates()) {
+					warmup(template.getFileName().toString(), template, null, current);
+				}
+			}
+			ready = true;
+		} catch (RuntimeException e) {
+			// the templates could not be listed, a failing template is reported by warmup
+			current.listingFailed(e);
+			if (LOG.isErrorEnabled()) {
+				LOG.error("Template warm-up could not list the templates", e);
+			}
+		} finally {
+			current.finish();
+		}
+
+		if (ready && LOG.isInfoEnabled()) {
+			LOG.info("Template warm-up finished: " + current);
+		}
+		return current;
+	}
+
+	public CompletableFuture<TemplateWarmupReport> start(Executor executor) {
+		Assert.notNull(executor, "executor parameter cannot be empty");
+		return CompletableFuture.supplyAsync(this::run, executor);
+	}
+
+	private void warmup(String templateName, Path template, PlaceholdersData indexed,
+			TemplateWarmupReport current) {
+		try {
+			PlaceholdersData placeholders = indexed;
+			if (templateCache != null) {
+				placeholders = templatingService.retrieveFields(templateCache.get(template));
+			} else if (placeholders == null) {
+				try (InputStream is = Files.newInputStream(template)) {
+					placeholders = templatingService.retrieveFields(is);
+				}
+			}
+			current.templateLoaded();
+
+			final DataRoot request = syntheticRequest(placeholders);
+			for (TemplateOutputFormat format : formats) {
+				for (int i = 0; i < renderCount; i++) {
+					// every render does the work, and the synthetic documents stay out of the result cache
+					templatesService.generateDocument(request, templateName, format, Boolean.FALSE, null,
+							new TemplateOptions().addOption(ResultCache.BYPASS_OPTION, Boolean.TRUE),
+							NullOutputStream.NULL_OUTPUT_STREAM, false);
+					current.templateRendered();
+				}
+			}
+		} catch (Exception e) {
+			current.templateFailed(templateName, e);
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Warm-up of template " + templateName + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Fills every field with its own name and every table with two rows, so
+	 * the mail merge, the binding and the repeats all have work to do.
+	 */
+	static DataRoot syntheticRequest(PlaceholdersData placeholders) {
+		final Map<String, Object> data = new HashMap<>();
+		for (String field : placeholders.getFields()) {
+			put(data, field, field.substring(field.lastIndexOf('.') + 1));
+		}
+
+		for (Map.Entry<String, Set<String>> table : placeholders.getTables().entrySet()) {
+			final List<Map<String, Object>> rows = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				final Map<String, Object> row = new HashMap<>();
+				for (String column : table.getValue()) {
+					row.put(column, column);
+				}
+				rows.add(row);
+			}
+			put(data, table.getKey(), rows);
+		}
+
+		final DataRoot request = new DataRoot();
+		request.putAll(data);
+		return request;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void put(Map<String, Object> data, String path, Object value) {
+		Map<String, Object> parent = data;
+		int start = 0;
+		int end;
+		while ((end = path.indexOf('.', start)) > -1) {
+			final Object child = parent.computeIfAbsent(path.substring(start, end), key -> new HashMap<>());
+			if (!(child instanceof Map)) {
+				return;
+			}
+			parent = (Map<String, Object>) child;
+			start = end + 1;
+		}
+		parent.putIfAbsent(path.substring(start), value);
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * The report of the running or last warm-up, {@code null} before the
+	 * first one started.
+	 */
+	public TemplateWarmupReport getReport() {
+		return report;
+	}
+
+	public void setTemplateCache(TemplateCache templateCache) {
+		this.templateCache = templateCache;
+	}
+
+	/**
+	 * Takes the templates from the registry instead of listing the template
+	 * folder, nested folders included.
+	 */
+	public void setTemplateRegistry(TemplateRegistry templateRegistry) {
+		this.templateRegistry = templateRegistry;
+	}
+
+	public void setRenderCount(int renderCount) {
+		Assert.isTrue(renderCount >= 0, "renderCount parameter cannot be negative");
+		this.renderCount = renderCount;
+	}
+
+	public void setFormats(List<TemplateOutputFormat> formats) {
+		Assert.notEmpty(formats, "formats parameter cannot be empty");
+		this.formats = new ArrayList<>(formats);
+	}
+}
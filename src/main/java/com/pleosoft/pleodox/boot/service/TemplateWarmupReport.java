@@ -0,0 +1,115 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of a template warm-up, updated while it runs. Templates which could
+ * not be loaded or rendered are kept with their cause, and so is a failure to
+ * list the templates.
+ */
+public class TemplateWarmupReport {
+
+	private final long started = System.nanoTime();
+	private final AtomicLong templateCount = new AtomicLong();
+	private final AtomicLong renderCount = new AtomicLong();
+	private final List<TemplateFailure> failures = Collections.synchronizedList(new ArrayList<>());
+	private volatile Throwable listingFailure;
+	private volatile long finished;
+
+	void templateLoaded() {
+		templateCount.incrementAndGet();
+	}
+
+	void templateRendered() {
+		renderCount.incrementAndGet();
+	}
+
+	void templateFailed(String templateName, Throwable cause) {
+		failures.add(new TemplateFailure(templateName, cause));
+	}
+
+	void listingFailed(Throwable cause) {
+		listingFailure = cause;
+	}
+
+	void finish() {
+		finished = System.nanoTime();
+	}
+
+	public long getTemplateCount() {
+		return templateCount.get();
+	}
+
+	public long getRenderCount() {
+		return renderCount.get();
+	}
+
+	public List<TemplateFailure> getFailures() {
+		synchronized (failures) {
+			return new ArrayList<>(failures);
+		}
+	}
+
+	/**
+	 * Why the templates could not be listed, {@code null} when they were. The
+	 * warm-up did not complete then.
+	 */
+	public Throwable getListingFailure() {
+		return listingFailure;
+	}
+
+	public boolean isFinished() {
+		return finished != 0;
+	}
+
+	public long getElapsedTime(TimeUnit unit) {
+		final long end = finished != 0 ? finished : System.nanoTime();
+		return unit.convert(end - started, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "templates=" + getTemplateCount() + ", renders=" + getRenderCount() + ", failures="
+				+ failures.size() + (listingFailure != null ? ", listingFailure=" + listingFailure : "")
+				+ ", elapsed=" + getElapsedTime(TimeUnit.MILLISECONDS) + "ms";
+	}
+
+	public static class TemplateFailure {
+
+		private final String templateName;
+		private final Throwable cause;
+
+		TemplateFailure(String templateName, Throwable cause) {
+			this.templateName = templateName;
+			this.cause = cause;
+		}
+
+		public String getTemplateName() {
+			return templateName;
+		}
+
+		public Throwable getCause() {
+			return cause;
+		}
+	}
+}
@@ -16,119 +16,173 @@
 
 package com.pleosoft.pleodox.boot.service;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipException;
 
-import org.apache.pdfbox.io.MemoryUsageSetting;
-import org.apache.pdfbox.multipdf.PDFMergerUtility;
-import org.apache.pdfbox.multipdf.PDFMergerUtility.DocumentMergeMode;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.integration.file.FileHeaders;
-import org.springframework.integration.support.MessageBuilder;
 import org.springframework.integration.zip.transformer.ZipTransformer;
-import org.springframework.messaging.Message;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 import com.pleosoft.pleodox.boot.data.DataRoot;
 import com.pleosoft.pleodox.boot.data.TemplateOptions;
 import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
+import com.pleosoft.pleodox.boot.service.AdaptiveConcurrencyLimiter.Permit;
+import com.pleosoft.pleodox.boot.service.ResultCache.CachedResult;
 import com.pleosoft.pleodox.boot.storage.StorageService;
 
 public class TemplatesService {
 
 	private static final Logger LOG = LoggerFactory.getLogger(TemplatesService.class);
 
+	public static final String OFFICE_CONVERSION_ENGINE = "office";
+
 	private final DocumentGenerateService templatingService;
 	private final StorageService storageService;
 	private final TransformationService transformationService;
-	private final ZipTransformer zipTransformer;
 	private final DocumentGenerationHandler documentGenerationHandler;
 	private final List<DocumentGenerator> documentGenerators;
 
+	private ExecutorService executor;
+	private ExecutorService asyncExecutor;
+	private ExecutorService renderExecutor;
+	private ResultCache resultCache;
+	private AdaptiveConcurrencyLimiter concurrencyLimiter;
+	private int maxParallelTemplates = 1;
+	private ConversionScheduler conversionScheduler;
+	private TemplateCache templateCache;
+	private PdfMergeService pdfMergeService = new PdfMergeService();
+	private final Map<String, DocumentConversionEngine> conversionEngines = new HashMap<>();
+	private final Map<String, String> templateConversionEngines = new HashMap<>();
+	private String defaultConversionEngine;
+
 	public TemplatesService(DocumentGenerateService templatingService, StorageService storageService,
-			TransformationService transformationService, ZipTransformer zipTransformer,
-			DocumentGenerationHandler documentGenerationHandler, List<DocumentGenerator> documentGenerators) {
+			TransformationService transformationService, DocumentGenerationHandler documentGenerationHandler,
+			List<DocumentGenerator> documentGenerators) {
 		this.templatingService = templatingService;
 		this.storageService = storageService;
 		this.transformationService = transformationService;
-		this.zipTransformer = zipTransformer;
 		this.documentGenerationHandler = documentGenerationHandler;
 		this.documentGenerators = documentGenerators;
 	}
 
+	/**
+	 * @deprecated the zip archives are written by a {@link ZipStreamWriter}, the
+	 *             ZipTransformer is not used any more
+	 */
+	@Deprecated
+	public TemplatesService(DocumentGenerateService templatingService, StorageService storageService,
+			TransformationService transformationService, ZipTransformer zipTransformer,
+			DocumentGenerationHandler documentGenerationHandler, List<DocumentGenerator> documentGenerators) {
+		this(templatingService, storageService, transformationService, documentGenerationHandler,
+				documentGenerators);
+	}
+
 	private final Path generateDocument(DataRoot request, String folderName, String templateName,
-			TemplateOutputFormat format, Boolean readOnly, String protectionPass, String namePrefix)
-			throws FileNotFoundException, IOException {
+			TemplateOutputFormat format, Boolean readOnly, String protectionPass, String namePrefix,
+			TemplateOptions options) throws FileNotFoundException, IOException {
 
-		Assert.notNull(request, "request parameter cnanot be empty");
-		Assert.hasText(folderName, "folderName parameter cnanot be empty");
-		Assert.hasText(templateName, "templateName parameter cnanot be empty");
 		Assert.notNull(format, "format parameter cnanot be empty");
 
 		Path tempResource = null;
+		final GenerationTrace trace = newTrace(templateName, format);
 		try {
 			documentGenerationHandler.beforeDocumentGenerated();
 
-			String cleanTemplatePath = StringUtils.cleanPath(templateName);
-			final Path resource = storageService.loadExistingTemplate(cleanTemplatePath);
-			String filename = cleanTemplatePath.replaceAll("/", "_");
+			final TemplateOptions templateOptions = new TemplateOptions().addOption(GenerationTrace.OPTION, trace);
+			tempResource = renderDocument(request, folderName, templateName, format, readOnly, protectionPass,
+					namePrefix, options, templateOptions);
 
-			// find the first applicable generator
-			DocumentGenerator applicableGenerator = null;
-			TemplateOptions templateOptions = new TemplateOptions().addOption("readOnly", readOnly)
-					.addOption("protectionPass", protectionPass).addOption("templatename", cleanTemplatePath);
-			for (DocumentGenerator generator : documentGenerators) {
-				if (generator.isTransformable(templateName, request, templateOptions)) {
-					applicableGenerator = generator;
-					break;
-				}
+			if (!TemplateOutputFormat.DOCX.equals(format) && !format.equals(templateOptions.getOption("convertedTo"))) {
+				trace.begin(GenerationPhase.CONVERSION);
+				tempResource = convertDocument(tempResource, format);
+				trace.end(tempResource);
 			}
 
-			if (applicableGenerator == null) {
-				throw new TemplateFailedException(new Exception("There is no document generator applicable"));
+			trace.documentGenerated(tempResource);
+			documentGenerationHandler.afterDocumentGenerated();
+
+			// a converted document may be written long after its folder was resolved
+			storageService.touchTemporary(tempResource);
+			return tempResource;
+		} catch (Throwable e) {
+			documentFailed(trace, e);
+
+			if (tempResource != null) {
+				try {
+					Files.deleteIfExists(tempResource);
+				} catch (Exception e1) {
+					;
+				}
 			}
+			throw e instanceof TemplateFailedException ? (TemplateFailedException) e : new TemplateFailedException(e);
+		}
+	}
+
+	private Path renderDocument(DataRoot request, String folderName, String templateName,
+			TemplateOutputFormat format, Boolean readOnly, String protectionPass, String namePrefix,
+			TemplateOptions options, TemplateOptions templateOptions) throws Exception {
+
+		Assert.notNull(request, "request parameter cnanot be empty");
+		Assert.hasText(folderName, "folderName parameter cnanot be empty");
+		Assert.hasText(templateName, "templateName parameter cnanot be empty");
+
+		Path tempResource = null;
+		try {
+			String cleanTemplatePath = StringUtils.cleanPath(templateName);
+			String filename = cleanTemplatePath.replaceAll("/", "_");
 
 			if (!StringUtils.hasText(folderName)) {
 				folderName = UUID.randomUUID().toString();
 			}
 
-			// TODO check if we can get rid of streams of the same file
-			try (InputStream is = Files.newInputStream(resource)) {
-				final String finalName = namePrefix == null ? folderName + File.separator + filename
-						: folderName + File.separator + namePrefix + "-" + filename;
-				tempResource = storageService.storeTemporary(is, finalName);
-
-				try (InputStream tplStream = Files.newInputStream(tempResource)) {
-					try (OutputStream os = Files.newOutputStream(tempResource)) {
-						try (InputStream templateStream = Files.newInputStream(resource)) {
-							applicableGenerator.generate(templateStream, os, request, templateOptions);
-						}
-					}
-
-					if (!TemplateOutputFormat.DOCX.equals(format)) {
-						tempResource = transformationService.transform(tempResource.toFile(), format);
-					}
+			final String finalName = namePrefix == null ? folderName + File.separator + filename
+					: folderName + File.separator + namePrefix + "-" + filename;
+			tempResource = storageService.resolveTemporary(finalName);
+			Files.createDirectories(tempResource.getParent());
 
-					documentGenerationHandler.afterDocumentGenerated();
+			try (OutputStream os = Files.newOutputStream(tempResource)) {
+				renderTemplate(request, cleanTemplatePath, format, readOnly, protectionPass, options, templateOptions,
+						os);
+			}
 
-					return tempResource;
-				}
+			if (format.equals(templateOptions.getOption("convertedTo"))) {
+				final String converted = StringUtils.stripFilenameExtension(tempResource.getFileName().toString())
+						+ format.getExtension();
+				tempResource = Files.move(tempResource, tempResource.resolveSibling(converted),
+						StandardCopyOption.REPLACE_EXISTING);
 			}
 
+			return tempResource;
 		} catch (Throwable e) {
-
 			if (tempResource != null) {
 				try {
 					Files.deleteIfExists(tempResource);
@@ -136,71 +190,338 @@ public class TemplatesService {
 					;
 				}
 			}
-			throw new TemplateFailedException(e);
+			throw e;
 		}
 	}
 
-	public Path buildZip(String moveTo, List<File> resources) throws FileNotFoundException, IOException {
-		return buildZip(moveTo, resources, null);
-	}
+	private void renderTemplate(DataRoot request, String templateName, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, TemplateOptions options, TemplateOptions templateOptions,
+			OutputStream os) throws Exception {
+		final Path resource = storageService.loadExistingTemplate(templateName);
 
-	public Path buildZip(String moveTo, List<File> resources, String namePrefix)
-			throws FileNotFoundException, IOException {
-		Assert.notEmpty(resources, "resources parameter cnanot be empty");
+		// the request options reach the generators, the ones set here take precedence
+		if (options != null) {
+			for (Map.Entry<String, Object> option : options.getOptions().entrySet()) {
+				if (templateOptions.getOption(option.getKey()) == null) {
+					templateOptions.addOption(option.getKey(), option.getValue());
+				}
+			}
+		}
+
+		// find the first applicable generator
+		DocumentGenerator applicableGenerator = null;
+		templateOptions.addOption("readOnly", readOnly).addOption("protectionPass", protectionPass)
+				.addOption("templatename", templateName).addOption("templatePath", resource)
+				.addOption("outputFormat", format)
+				.addOption("conversionEngine", resolveConversionEngine(templateName, format, options));
+		for (DocumentGenerator generator : documentGenerators) {
+			if (generator.isTransformable(templateName, request, templateOptions)) {
+				applicableGenerator = generator;
+				break;
+			}
+		}
+
+		if (applicableGenerator == null) {
+			throw new TemplateFailedException(new Exception("There is no document generator applicable"));
+		}
 
-		Message<List<File>> message = null;
-		if (StringUtils.hasText(namePrefix)) {
-			message = MessageBuilder.withPayload(resources)
-					.setHeader(FileHeaders.FILENAME, namePrefix + "-templates.zip").build();
-		} else {
-			message = MessageBuilder.withPayload(resources).setHeader(FileHeaders.FILENAME, "templates.zip").build();
+		// a streamed document goes straight to the caller, buffering it would hold all its rows on the heap,
+		// and the generator does no docx4j work for the render pool
+		if (renderExecutor == null || applicableGenerator instanceof StreamingDocxGenerator) {
+			generate(applicableGenerator, resource, request, templateOptions, os);
+			return;
 		}
 
+		// the docx4j work runs on the bounded render pool, the caller only waits and writes
+		final DocumentGenerator generator = applicableGenerator;
+		final DocumentBuffer rendered = new DocumentBuffer();
+		final Future<?> render = renderExecutor.submit(() -> {
+			generate(generator, resource, request, templateOptions, rendered);
+			return null;
+		});
 		try {
-			final Message<?> transform = zipTransformer.transform(message);
-			final File payload = (File) transform.getPayload();
+			render.get();
+		} catch (InterruptedException e) {
+			render.cancel(true);
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+		rendered.writeTo(os);
+	}
+
+	private void generate(DocumentGenerator generator, Path resource, DataRoot request,
+			TemplateOptions templateOptions, OutputStream os) throws Exception {
+		try (InputStream templateStream = templateCache != null ? templateCache.get(resource).getArchiveStream()
+				: Files.newInputStream(resource)) {
+			generator.generate(templateStream, os, request, templateOptions);
+		}
+	}
+
+	private DocumentConversionEngine resolveConversionEngine(String templateName, TemplateOutputFormat format,
+			TemplateOptions options) {
+		if (TemplateOutputFormat.DOCX.equals(format)) {
+			return null;
+		}
+
+		// request option, then the template mapping, then the default
+		Object engine = options != null ? options.getOption("conversionEngine") : null;
+		if (engine == null) {
+			engine = templateConversionEngines.get(templateName);
+		}
+		if (engine == null) {
+			engine = defaultConversionEngine;
+		}
+
+		if (engine == null || engine instanceof DocumentConversionEngine) {
+			return (DocumentConversionEngine) engine;
+		}
+		if (OFFICE_CONVERSION_ENGINE.equals(engine)) {
+			return null;
+		}
+
+		final DocumentConversionEngine conversionEngine = conversionEngines.get(engine);
+		Assert.notNull(conversionEngine, "Unknown conversion engine " + engine);
+		return conversionEngine;
+	}
 
-			try (InputStream is = new FileInputStream(payload)) {
-				String filename = payload.getName();
-				return storageService.storeTemporary(is,
-						StringUtils.hasText(moveTo) ? moveTo + File.separator + filename : filename);
+	private Path convertDocument(Path document, TemplateOutputFormat format) {
+		if (conversionScheduler != null) {
+			return conversionScheduler.convert(document.toFile(), format);
+		}
+		return transformationService.transform(document.toFile(), format);
+	}
+
+	/**
+	 * @return the size of the converted document
+	 */
+	private long convertDocument(DocumentBuffer document, OutputStream os, TemplateOutputFormat format)
+			throws IOException {
+		if (conversionScheduler != null) {
+			final DocumentBuffer converted = conversionScheduler.convert(document, format);
+			converted.writeTo(os);
+			return converted.size();
+		}
+
+		final CountingOutputStream counting = new CountingOutputStream(os);
+		transformationService.transform(document.toInputStream(), counting, format);
+		return counting.getByteCount();
+	}
+
+	private CompletableFuture<Path> convertDocumentAsync(Path document, TemplateOutputFormat format) {
+		if (TemplateOutputFormat.DOCX.equals(format)) {
+			return CompletableFuture.completedFuture(document);
+		}
+
+		CompletableFuture<Path> converted;
+		try {
+			if (conversionScheduler != null) {
+				converted = conversionScheduler.submit(document.toFile(), format);
+			} else {
+				converted = CompletableFuture.completedFuture(transformationService.transform(document.toFile(), format));
 			}
-		} catch (ZipException e) {
-			for (File file : resources) {
+		} catch (Throwable e) {
+			converted = CompletableFuture.failedFuture(e);
+		}
+
+		return converted.whenComplete((path, e) -> {
+			if (e != null) {
 				try {
-					file.delete();
+					Files.deleteIfExists(document);
 				} catch (Exception e1) {
 					;
 				}
 			}
+		});
+	}
+
+	public void generateDocument(DataRoot request, String templateName, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, TemplateOptions options, OutputStream os) {
+		generateDocument(request, templateName, format, readOnly, protectionPass, options, os, true);
+	}
+
+	/**
+	 * @param limited {@code false} skips the concurrency limiter, for internal
+	 *                renders like the warm-up which must not be shed
+	 */
+	void generateDocument(DataRoot request, String templateName, TemplateOutputFormat format, Boolean readOnly,
+			String protectionPass, TemplateOptions options, OutputStream os, boolean limited) {
+		Assert.notNull(request, "request parameter cnanot be empty");
+		Assert.hasText(templateName, "templateName parameter cnanot be empty");
+		Assert.notNull(format, "format parameter cnanot be empty");
+		Assert.notNull(os, "os parameter cnanot be empty");
+
+		final String cacheKey = resultCacheKey(request, format, readOnly, protectionPass,
+				Collections.singletonList(templateName), null, null, options);
+		if (cacheKey == null) {
+			renderAdmitted(request, templateName, format, readOnly, protectionPass, options, os, limited);
+			return;
+		}
+
+		try {
+			final CachedResult cached = resultCache.get(cacheKey);
+			if (cached != null) {
+				try {
+					cached.writeTo(os);
+					return;
+				} catch (NoSuchFileException e) {
+					// evicted since the lookup before anything was written, generated again
+				}
+			}
+
+			final DocumentBuffer generated = new DocumentBuffer();
+			renderAdmitted(request, templateName, format, readOnly, protectionPass, options, generated, limited);
+			resultCache.put(cacheKey, StringUtils.stripFilenameExtension(StringUtils.getFilename(templateName))
+					+ format.getExtension(), generated);
+			generated.writeTo(os);
+		} catch (IOException e) {
+			throw new TemplateFailedException(e);
+		}
+	}
+
+	private void renderAdmitted(DataRoot request, String templateName, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, TemplateOptions options, OutputStream os, boolean limited) {
+		final Permit permit = limited ? admit() : AdaptiveConcurrencyLimiter.UNLIMITED;
+		try {
+			renderDocument(request, templateName, format, readOnly, protectionPass, options, os);
+			permit.release(null);
+		} catch (Throwable e) {
+			permit.release(e);
 			throw e;
 		}
 	}
 
-	public Path mergePdf(String moveTo, List<File> resources, String namePrefix)
+	private void renderDocument(DataRoot request, String templateName, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, TemplateOptions options, OutputStream os) {
+		final GenerationTrace trace = newTrace(templateName, format);
+		try {
+			documentGenerationHandler.beforeDocumentGenerated();
+
+			final String cleanTemplatePath = StringUtils.cleanPath(templateName);
+			final TemplateOptions templateOptions = new TemplateOptions().addOption(GenerationTrace.OPTION, trace);
+			if (TemplateOutputFormat.DOCX.equals(format)) {
+				renderTemplate(request, cleanTemplatePath, format, readOnly, protectionPass, options, templateOptions,
+						os);
+				trace.documentGenerated(-1);
+			} else {
+				final DocumentBuffer rendered = new DocumentBuffer();
+				renderTemplate(request, cleanTemplatePath, format, readOnly, protectionPass, options, templateOptions,
+						rendered);
+
+				if (format.equals(templateOptions.getOption("convertedTo"))) {
+					rendered.writeTo(os);
+					trace.documentGenerated(rendered.size());
+				} else {
+					trace.begin(GenerationPhase.CONVERSION);
+					final long size = convertDocument(rendered, os, format);
+					trace.end(size);
+					trace.documentGenerated(size);
+				}
+			}
+
+			documentGenerationHandler.afterDocumentGenerated();
+		} catch (Throwable e) {
+			documentFailed(trace, e);
+			throw e instanceof TemplateFailedException ? (TemplateFailedException) e : new TemplateFailedException(e);
+		}
+	}
+
+	public void generateDocument(DataRoot request, String templateName, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, TemplateOptions options, WritableByteChannel channel) {
+		Assert.notNull(channel, "channel parameter cnanot be empty");
+
+		// the channel stays open, it belongs to the caller
+		final OutputStream os = Channels.newOutputStream(channel);
+		generateDocument(request, templateName, format, readOnly, protectionPass, options, os);
+	}
+
+	public ByteBuffer generateDocumentBuffer(DataRoot request, String templateName, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, TemplateOptions options, boolean direct) {
+		final DocumentBuffer buffer = new DocumentBuffer();
+		generateDocument(request, templateName, format, readOnly, protectionPass, options, buffer);
+		return buffer.toByteBuffer(direct);
+	}
+
+	public Path buildZip(String moveTo, List<File> resources) throws FileNotFoundException, IOException {
+		return buildZip(moveTo, resources, null);
+	}
+
+	public Path buildZip(String moveTo, List<File> resources, String namePrefix)
 			throws FileNotFoundException, IOException {
 		Assert.notEmpty(resources, "resources parameter cnanot be empty");
 
-		String finalName = null;
-		if (StringUtils.hasText(namePrefix)) {
-			finalName = namePrefix + ".pdf";
-		} else {
-			finalName = "template.pdf";
+		final Path zipPath = resolveZip(moveTo, namePrefix);
+		final GenerationTrace trace = newTrace(null, null);
+		trace.begin(GenerationPhase.ZIP);
+		try (ZipStreamWriter zip = new ZipStreamWriter(new BufferedOutputStream(Files.newOutputStream(zipPath)))) {
+			for (File file : resources) {
+				zip.addEntry(file.getName(), file.toPath());
+			}
+		} catch (IOException e) {
+			trace.fail(e);
+			try {
+				Files.deleteIfExists(zipPath);
+			} catch (Exception e1) {
+				;
+			}
+			if (e instanceof ZipException) {
+				for (File file : resources) {
+					try {
+						file.delete();
+					} catch (Exception e1) {
+						;
+					}
+				}
+			}
+			throw e;
 		}
+		trace.end(zipPath);
+		storageService.touchTemporary(zipPath);
+		return zipPath;
+	}
 
-		try {
-			PDFMergerUtility ut = new PDFMergerUtility();
-			ut.setDocumentMergeMode(DocumentMergeMode.OPTIMIZE_RESOURCES_MODE);
+	/**
+	 * Streams the resources as a zip archive to {@code os}, which is left open.
+	 */
+	public void buildZip(List<File> resources, OutputStream os) throws IOException {
+		Assert.notEmpty(resources, "resources parameter cnanot be empty");
+
+		final GenerationTrace trace = newTrace(null, null);
+		trace.begin(GenerationPhase.ZIP);
+		try (ZipStreamWriter zip = new ZipStreamWriter(os, false)) {
 			for (File file : resources) {
-				ut.addSource(file);
+				zip.addEntry(file.getName(), file.toPath());
 			}
+		} catch (IOException e) {
+			trace.fail(e);
+			throw e;
+		}
+		trace.end();
+	}
 
-			Path path = storageService.resolveTemporary(moveTo + "/" + finalName).toAbsolutePath();
-			ut.setDestinationFileName(path.toString());
-			ut.mergeDocuments(MemoryUsageSetting.setupMainMemoryOnly());
+	private Path resolveZip(String moveTo, String namePrefix) throws IOException {
+		final String filename = StringUtils.hasText(namePrefix) ? namePrefix + "-templates.zip" : "templates.zip";
+		final Path zipPath = storageService
+				.resolveTemporary(StringUtils.hasText(moveTo) ? moveTo + File.separator + filename : filename);
+		Files.createDirectories(zipPath.getParent());
+		return zipPath;
+	}
+
+	public Path mergePdf(String moveTo, List<File> resources, String namePrefix)
+			throws FileNotFoundException, IOException {
+		Assert.notEmpty(resources, "resources parameter cnanot be empty");
 
+		final GenerationTrace trace = newTrace(null, TemplateOutputFormat.PDF);
+		try {
+			final Path path = resolveMergedPdf(moveTo, namePrefix);
+			trace.begin(GenerationPhase.PDF_MERGE);
+			pdfMergeService.merge(resources, path);
+			trace.end(path);
+			storageService.touchTemporary(path);
 			return path;
-		} catch (Throwable e) {
+		} catch (IOException | RuntimeException e) {
+			trace.fail(e);
 			throw e;
 		} finally {
 			for (File file : resources) {
@@ -213,57 +534,493 @@ public class TemplatesService {
 		}
 	}
 
+	private Path resolveMergedPdf(String moveTo, String namePrefix) {
+		final String finalName = StringUtils.hasText(namePrefix) ? namePrefix + ".pdf" : "template.pdf";
+		return storageService.resolveTemporary(moveTo + "/" + finalName).toAbsolutePath();
+	}
+
 	public Path generateDocument(DataRoot request, TemplateOutputFormat format, Boolean readOnly, String protectionPass,
 			List<String> templates, String moveTo, String namePrefix, Boolean mergePdf)
 			throws FileNotFoundException, IOException {
+		return generateDocument(request, format, readOnly, protectionPass, templates, moveTo, namePrefix, mergePdf,
+				null);
+	}
+
+	public Path generateDocument(DataRoot request, TemplateOutputFormat format, Boolean readOnly, String protectionPass,
+			List<String> templates, String moveTo, String namePrefix, Boolean mergePdf, TemplateOptions options)
+			throws FileNotFoundException, IOException {
+		final String cacheKey = resultCacheKey(request, format, readOnly, protectionPass, templates, namePrefix,
+				mergePdf, options);
+		if (cacheKey != null) {
+			final CachedResult cached = resultCache.get(cacheKey);
+			if (cached != null) {
+				final Path resource = resolveCached(moveTo, cached.getFileName());
+				try {
+					cached.writeTo(resource);
+					storageService.touchTemporary(resource);
+					return resource;
+				} catch (NoSuchFileException e) {
+					// evicted since the lookup, generated again
+				}
+			}
+		}
+
+		final Permit permit = admit();
 		Path resource = null;
 		try {
 			if (templates.size() > 1) {
-				final List<File> templateResources = new ArrayList<>();
+				if (TemplateOutputFormat.PDF.equals(format) && Boolean.TRUE.equals(mergePdf)) {
+					// every document is appended to the merged one as soon as it is ready
+					resource = resolveMergedPdf(moveTo, namePrefix);
+					try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(resource));
+							IncrementalPdfMerger merger = pdfMergeService.open(os)) {
+						generateTemplates(request, moveTo, templates, format, readOnly, protectionPass, namePrefix,
+								options, null, merger);
 
+						final GenerationTrace trace = newTrace(null, format);
+						trace.begin(GenerationPhase.PDF_MERGE);
+						try {
+							merger.finish();
+						} catch (IOException | RuntimeException e) {
+							trace.fail(e);
+							throw e;
+						}
+						trace.end(resource);
+					}
+				} else {
+					// every document goes into the archive as soon as it is ready
+					resource = resolveZip(moveTo, namePrefix);
+					try (ZipStreamWriter zip = new ZipStreamWriter(
+							new BufferedOutputStream(Files.newOutputStream(resource)))) {
+						generateTemplates(request, moveTo, templates, format, readOnly, protectionPass, namePrefix,
+								options, zip, null);
+					}
+				}
+			} else {
+				resource = generateDocument(request, moveTo, templates.get(0), format, readOnly, protectionPass,
+						namePrefix, options);
+			}
+			permit.release(null);
+		} catch (Throwable e) {
+			permit.release(e);
+			if (resource != null) {
 				try {
-					for (final String template : templates) {
-						Boolean ro = TemplateOutputFormat.DOCX.equals(format) ? readOnly : null;
+					Files.deleteIfExists(resource);
+				} catch (Exception e1) {
+					;
+				}
+			}
+			throw e;
+		}
 
-						final Path templateResource = generateDocument(request, moveTo, template, format, ro,
-								protectionPass, namePrefix);
-						templateResources.add(templateResource.toFile());
-					}
-				} catch (Exception e) {
+		if (cacheKey != null) {
+			resultCache.put(cacheKey, resource);
+		}
+		storageService.touchTemporary(resource);
+		return resource;
+	}
+
+	/**
+	 * @return the result cache key of the request, {@code null} if there is
+	 *         no result cache, the request bypasses it or a template is missing
+	 */
+	private String resultCacheKey(DataRoot request, TemplateOutputFormat format, Boolean readOnly,
+			String protectionPass, List<String> templates, String namePrefix, Boolean mergePdf,
+			TemplateOptions options) {
+		if (resultCache == null || ResultCache.isBypassed(options) || request == null || format == null
+				|| templates == null || templates.isEmpty()) {
+			return null;
+		}
+
+		final List<String> templateVersions = new ArrayList<>(templates.size());
+		try {
+			for (String templateName : templates) {
+				final Path resource = storageService.loadExistingTemplate(StringUtils.cleanPath(templateName));
+				templateVersions.add(templateCache != null ? templateCache.get(resource).getContentHash()
+						: resultCache.templateVersion(resource));
+			}
+		} catch (Exception e) {
+			// the generation reports the missing template
+			return null;
+		}
+		return resultCache.key(templateVersions, request, format, readOnly, protectionPass, namePrefix, mergePdf,
+				options);
+	}
+
+	private Path resolveCached(String moveTo, String fileName) throws IOException {
+		final Path path = storageService
+				.resolveTemporary(StringUtils.hasText(moveTo) ? moveTo + File.separator + fileName : fileName);
+		Files.createDirectories(path.getParent());
+		return path;
+	}
+
+	/**
+	 * Generates the documents on the asynchronous executor, the calling thread
+	 * returns at once. Cancelling the future interrupts the generation.
+	 */
+	public CompletableFuture<Path> generateDocumentAsync(DataRoot request, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, List<String> templates, String moveTo, String namePrefix,
+			Boolean mergePdf, TemplateOptions options) {
+		Assert.notEmpty(templates, "templates parameter cnanot be empty");
+
+		return GenerationJob.start(UUID.randomUUID().toString(), () -> generateDocument(request, format, readOnly,
+				protectionPass, templates, moveTo, namePrefix, mergePdf, options), asyncExecutor()).getFuture();
+	}
+
+	/**
+	 * Same as
+	 * {@link #generateDocumentAsync(DataRoot, TemplateOutputFormat, Boolean, String, List, String, String, Boolean, TemplateOptions)},
+	 * the job is kept in the registry to be polled or cancelled by its id.
+	 */
+	public GenerationJob submitDocument(GenerationJobRegistry registry, DataRoot request, TemplateOutputFormat format,
+			Boolean readOnly, String protectionPass, List<String> templates, String moveTo, String namePrefix,
+			Boolean mergePdf, TemplateOptions options) {
+		Assert.notNull(registry, "registry parameter cnanot be empty");
+		Assert.notEmpty(templates, "templates parameter cnanot be empty");
+
+		return registry.submit(() -> generateDocument(request, format, readOnly, protectionPass, templates, moveTo,
+				namePrefix, mergePdf, options));
+	}
+
+	private synchronized ExecutorService asyncExecutor() {
+		if (asyncExecutor == null) {
+			asyncExecutor = GenerationExecutors.newAsyncExecutor();
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * Renders the templates of a request and streams them as a zip archive to
+	 * {@code os}, which is left open.
+	 */
+	public void generateZip(DataRoot request, TemplateOutputFormat format, Boolean readOnly, String protectionPass,
+			List<String> templates, String namePrefix, TemplateOptions options, OutputStream os) throws IOException {
+		Assert.notEmpty(templates, "templates parameter cnanot be empty");
+		Assert.notNull(os, "os parameter cnanot be empty");
+
+		final String folderName = UUID.randomUUID().toString();
+		final Permit permit = admit();
+		try (ZipStreamWriter zip = new ZipStreamWriter(os, false)) {
+			generateTemplates(request, folderName, templates, format, readOnly, protectionPass, namePrefix, options,
+					zip, null);
+			permit.release(null);
+		} catch (Throwable e) {
+			permit.release(e);
+			throw e;
+		} finally {
+			try {
+				Files.deleteIfExists(storageService.resolveTemporary(folderName));
+			} catch (Exception e1) {
+				;
+			}
+		}
+	}
+
+	private List<File> generateTemplates(DataRoot request, String folderName, List<String> templates,
+			TemplateOutputFormat format, Boolean readOnly, String protectionPass, String namePrefix,
+			TemplateOptions options, ZipStreamWriter zip, IncrementalPdfMerger merger) throws IOException {
+		final List<File> templateResources = new ArrayList<>();
+
+		try {
+			Boolean ro = TemplateOutputFormat.DOCX.equals(format) ? readOnly : null;
+
+			if (executor != null && maxParallelTemplates > 1) {
+				templateResources.addAll(generateConcurrently(request, folderName, templates, format, ro,
+						protectionPass, namePrefix, options, zip));
+				if (merger != null) {
+					// the merge keeps the order of the templates
 					for (File file : templateResources) {
+						appendToMerger(merger, file.toPath());
+					}
+				}
+			} else {
+				for (final String template : templates) {
+					final Path templateResource = generateDocument(request, folderName, template, format, ro,
+							protectionPass, namePrefix, options);
+					templateResources.add(templateResource.toFile());
+					if (zip != null) {
+						addToZip(zip, templateResource);
+					}
+					if (merger != null) {
+						appendToMerger(merger, templateResource);
+					}
+				}
+			}
+		} catch (Exception e) {
+			for (File file : templateResources) {
+				try {
+					Files.deleteIfExists(file.toPath());
+				} catch (Exception e1) {
+					;
+				}
+			}
+			throw e;
+		}
+
+		if (templateResources.isEmpty()) {
+			throw new FileNotFoundException("templates could not be found or empty value");
+		}
+		return templateResources;
+	}
+
+	private void addToZip(ZipStreamWriter zip, Path document) throws IOException {
+		final GenerationTrace trace = newTrace(null, null);
+		try {
+			trace.begin(GenerationPhase.ZIP);
+			zip.addEntry(document.getFileName().toString(), document);
+			trace.end(document);
+		} catch (IOException | RuntimeException e) {
+			trace.fail(e);
+			throw e;
+		} finally {
+			Files.deleteIfExists(document);
+		}
+	}
+
+	private void appendToMerger(IncrementalPdfMerger merger, Path document) throws IOException {
+		final GenerationTrace trace = newTrace(null, TemplateOutputFormat.PDF);
+		try {
+			trace.begin(GenerationPhase.PDF_MERGE);
+			merger.append(document.toFile());
+			trace.end(document);
+		} catch (IOException | RuntimeException e) {
+			trace.fail(e);
+			throw e;
+		} finally {
+			Files.deleteIfExists(document);
+		}
+	}
+
+	private Permit admit() {
+		return concurrencyLimiter != null ? concurrencyLimiter.acquire() : AdaptiveConcurrencyLimiter.UNLIMITED;
+	}
+
+	private GenerationTrace newTrace(String templateName, TemplateOutputFormat format) {
+		return new GenerationTrace(documentGenerationHandler,
+				templateName != null ? StringUtils.cleanPath(templateName) : null, format);
+	}
+
+	private void documentFailed(GenerationTrace trace, Throwable cause) {
+		trace.documentFailed(cause);
+		documentGenerationHandler.documentGenerationFailed(cause);
+	}
+
+	private List<File> generateConcurrently(DataRoot request, String folderName, List<String> templates,
+			TemplateOutputFormat format, Boolean readOnly, String protectionPass, String namePrefix,
+			TemplateOptions options, ZipStreamWriter zip) throws IOException {
+
+		final int size = templates.size();
+		final Semaphore permits = new Semaphore(maxParallelTemplates);
+		final AtomicBoolean failed = new AtomicBoolean();
+		final CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+		final List<Path> generated = Collections.synchronizedList(new ArrayList<>());
+		final List<CompletableFuture<Path>> futures = new ArrayList<>(size);
+
+		try {
+			for (final String template : templates) {
+				// bounds the renders of this request, conversions queue up in the scheduler
+				permits.acquire();
+				if (failed.get()) {
+					permits.release();
+					break;
+				}
+
+				final GenerationTrace trace = newTrace(template, format);
+				final TemplateOptions templateOptions = new TemplateOptions().addOption(GenerationTrace.OPTION, trace);
+				final AtomicBoolean started = new AtomicBoolean();
+				final CompletableFuture<Path> future = CompletableFuture.supplyAsync(() -> {
+					try {
+						if (failed.get()) {
+							throw new CancellationException();
+						}
+						started.set(true);
+						documentGenerationHandler.beforeDocumentGenerated();
+						return renderDocument(request, folderName, template, format, readOnly, protectionPass,
+								namePrefix, options, templateOptions);
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					} finally {
+						permits.release();
+					}
+				}, executor).thenCompose(document -> {
+					if (failed.get()) {
 						try {
-							Files.deleteIfExists(file.toPath());
+							Files.deleteIfExists(document);
 						} catch (Exception e1) {
 							;
 						}
+						throw new CancellationException();
 					}
-					throw e;
-				}
+					if (TemplateOutputFormat.DOCX.equals(format)
+							|| format.equals(templateOptions.getOption("convertedTo"))) {
+						return CompletableFuture.completedFuture(document);
+					}
+					trace.begin(GenerationPhase.CONVERSION);
+					return convertDocumentAsync(document, format).thenApply(converted -> {
+						trace.end(converted);
+						return converted;
+					});
+				}).thenApply(path -> {
+					trace.documentGenerated(path);
+					return path;
+				}).whenComplete((path, e) -> {
+					if (e == null) {
+						generated.add(path);
+						documentGenerationHandler.afterDocumentGenerated();
+					} else {
+						if (started.get()) {
+							documentFailed(trace,
+									e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+						}
+						failed.set(true);
+						firstFailure.completeExceptionally(e);
+					}
+				});
+				futures.add(future);
+			}
 
-				if (templateResources.isEmpty()) {
-					throw new FileNotFoundException("templates could not be found or empty value");
-				}
+			CompletableFuture.anyOf(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])), firstFailure)
+					.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelConcurrent(failed, futures, generated);
+			throw new TemplateFailedException(e);
+		} catch (ExecutionException e) {
+			cancelConcurrent(failed, futures, generated);
 
-				if (TemplateOutputFormat.PDF.equals(format) && Boolean.TRUE.equals(mergePdf)) {
-					resource = mergePdf(moveTo, templateResources, namePrefix);
-				} else {
-					resource = buildZip(moveTo, templateResources, namePrefix);
+			Throwable cause = e.getCause();
+			if (cause instanceof CompletionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof TemplateFailedException) {
+				throw (TemplateFailedException) cause;
+			}
+			throw new TemplateFailedException(cause);
+		}
+
+		// the archive gets the documents in the order of the templates, not as they completed
+		final List<File> files = new ArrayList<>(size);
+		try {
+			for (CompletableFuture<Path> future : futures) {
+				final Path path = future.join();
+				if (zip != null) {
+					addToZip(zip, path);
 				}
-			} else {
-				resource = generateDocument(request, moveTo, templates.get(0), format, readOnly, protectionPass,
-						namePrefix);
+				files.add(path.toFile());
 			}
-		} catch (Exception e) {
-			if (resource != null) {
+		} catch (IOException | RuntimeException e) {
+			for (CompletableFuture<Path> future : futures) {
 				try {
-					Files.deleteIfExists(resource);
+					Files.deleteIfExists(future.join());
 				} catch (Exception e1) {
 					;
 				}
 			}
 			throw e;
 		}
+		return files;
+	}
 
-		return resource;
+	private void cancelConcurrent(AtomicBoolean failed, List<CompletableFuture<Path>> futures, List<Path> generated) {
+		failed.set(true);
+
+		// renders that did not start yet bail out, wait for the ones in flight
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((v, e) -> null).join();
+
+		synchronized (generated) {
+			for (Path path : generated) {
+				try {
+					Files.deleteIfExists(path);
+				} catch (Exception e1) {
+					;
+				}
+			}
+		}
+	}
+
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Executor of {@code generateDocumentAsync}, virtual threads when the JDK
+	 * has them by default.
+	 */
+	public synchronized void setAsyncExecutor(ExecutorService asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+
+	/**
+	 * Bounded pool for the CPU heavy part of a render, the template load,
+	 * merge, binding and save into memory. The calling thread only waits and
+	 * writes the result, with virtual threads for the {@link #setExecutor
+	 * executor} and the {@link #setAsyncExecutor async executor} the blocking
+	 * I/O then holds no platform thread. By default the render runs on the
+	 * calling thread, and so do the documents of the
+	 * {@link StreamingDocxGenerator}, they are written as they are generated.
+	 */
+	public void setRenderExecutor(ExecutorService renderExecutor) {
+		this.renderExecutor = renderExecutor;
+	}
+
+	/**
+	 * Serves repeated requests from the cache instead of generating them
+	 * again, a request with the {@value ResultCache#BYPASS_OPTION} option is
+	 * always generated.
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * Admits the document requests through the limiter, a request over its
+	 * limit waits or fails fast with a {@link TemplateRejectedException}.
+	 * Results served from the result cache are not limited. By default every
+	 * request is admitted.
+	 */
+	public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	public void setConversionEngines(List<DocumentConversionEngine> conversionEngines) {
+		this.conversionEngines.clear();
+		for (DocumentConversionEngine conversionEngine : conversionEngines) {
+			this.conversionEngines.put(conversionEngine.getName(), conversionEngine);
+		}
+	}
+
+	/**
+	 * Engine used when neither the request nor the template mapping names one,
+	 * {@value #OFFICE_CONVERSION_ENGINE} keeps the office converter.
+	 */
+	public void setDefaultConversionEngine(String defaultConversionEngine) {
+		this.defaultConversionEngine = defaultConversionEngine;
+	}
+
+	public void setTemplateConversionEngines(Map<String, String> templateConversionEngines) {
+		this.templateConversionEngines.clear();
+		for (Map.Entry<String, String> entry : templateConversionEngines.entrySet()) {
+			this.templateConversionEngines.put(StringUtils.cleanPath(entry.getKey()), entry.getValue());
+		}
+	}
+
+	public void setTemplateCache(TemplateCache templateCache) {
+		this.templateCache = templateCache;
+	}
+
+	public void setPdfMergeService(PdfMergeService pdfMergeService) {
+		Assert.notNull(pdfMergeService, "pdfMergeService parameter cannot be empty");
+		this.pdfMergeService = pdfMergeService;
+	}
+
+	public void setConversionScheduler(ConversionScheduler conversionScheduler) {
+		this.conversionScheduler = conversionScheduler;
+	}
+
+	public void setMaxParallelTemplates(int maxParallelTemplates) {
+		Assert.isTrue(maxParallelTemplates > 0, "maxParallelTemplates must be positive");
+		this.maxParallelTemplates = maxParallelTemplates;
 	}
 }
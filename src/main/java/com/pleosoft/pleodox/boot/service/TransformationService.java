@@ -17,13 +17,17 @@
 package com.pleosoft.pleodox.boot.service;
 
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 
 import org.apache.commons.io.FilenameUtils;
 import org.jodconverter.DocumentConverter;
+import org.jodconverter.document.DocumentFormatRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 
 import com.pleosoft.pleodox.boot.data.TemplateOutputFormat;
 
@@ -58,4 +62,22 @@ public class TransformationService {
 		}
 	}
 
+	public void transform(InputStream sourceDocument, OutputStream os, TemplateOutputFormat outputFormat) {
+		Assert.notNull(sourceDocument, "sourceDocument parameter cannot be empty");
+		Assert.notNull(os, "os parameter cannot be empty");
+		Assert.notNull(outputFormat, "outputFormat parameter cannot be empty");
+
+		try {
+			final DocumentFormatRegistry formatRegistry = converter.getFormatRegistry();
+			converter.convert(sourceDocument, false)
+					.as(formatRegistry.getFormatByExtension(StringUtils.getFilenameExtension(
+							TemplateOutputFormat.DOCX.getExtension())))
+					.to(os, false)
+					.as(formatRegistry.getFormatByExtension(StringUtils.getFilenameExtension(outputFormat.getExtension())))
+					.execute();
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 }
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.service;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * Writes a zip archive straight to its destination, entry by entry, without an
+ * intermediate file. Every entry is either {@link ZipEntry#STORED} or
+ * {@link ZipEntry#DEFLATED}, by default already compressed formats like docx
+ * and pdf are stored. Entries may be added from several threads.
+ */
+public class ZipStreamWriter implements Closeable {
+
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList("docx", "dotx", "xlsx",
+			"pptx", "odt", "pdf", "zip", "png", "jpg", "jpeg", "gif"));
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final ZipOutputStream zos;
+	private int entryCount;
+
+	public ZipStreamWriter(OutputStream os) {
+		this(os, true);
+	}
+
+	/**
+	 * @param closeStream whether {@link #close()} closes {@code os} or only
+	 *                    finishes the archive, e.g. on a response stream
+	 */
+	public ZipStreamWriter(OutputStream os, boolean closeStream) {
+		Assert.notNull(os, "os parameter cannot be empty");
+		this.zos = new ZipOutputStream(closeStream ? os : new FilterOutputStream(os) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		});
+	}
+
+	public static int defaultMethod(String name) {
+		final String extension = StringUtils.getFilenameExtension(name);
+		return extension != null && COMPRESSED_EXTENSIONS.contains(extension.toLowerCase()) ? ZipEntry.STORED
+				: ZipEntry.DEFLATED;
+	}
+
+	public void setLevel(int level) {
+		Assert.isTrue(level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+				"level must be between -1 and 9");
+		synchronized (zos) {
+			zos.setLevel(level);
+		}
+	}
+
+	public void addEntry(String name, Path file) throws IOException {
+		addEntry(name, file, defaultMethod(name));
+	}
+
+	public void addEntry(String name, Path file, int method) throws IOException {
+		Assert.hasText(name, "name parameter cannot be empty");
+		Assert.notNull(file, "file parameter cannot be empty");
+
+		final ZipEntry entry = newEntry(name, method);
+		if (method == ZipEntry.STORED) {
+			// a stored entry needs its size and checksum up front, the file is read twice
+			final CRC32 crc = new CRC32();
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			long size = 0;
+			try (InputStream is = Files.newInputStream(file)) {
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					crc.update(buffer, 0, read);
+					size += read;
+				}
+			}
+			entry.setSize(size);
+			entry.setCompressedSize(size);
+			entry.setCrc(crc.getValue());
+		}
+
+		try (InputStream is = Files.newInputStream(file)) {
+			synchronized (zos) {
+				zos.putNextEntry(entry);
+				is.transferTo(zos);
+				zos.closeEntry();
+				entryCount++;
+			}
+		}
+	}
+
+	public void addEntry(String name, byte[] content) throws IOException {
+		addEntry(name, content, 0, content.length, defaultMethod(name));
+	}
+
+	public void addEntry(String name, byte[] content, int offset, int length, int method) throws IOException {
+		Assert.hasText(name, "name parameter cannot be empty");
+		Assert.notNull(content, "content parameter cannot be empty");
+
+		final ZipEntry entry = newEntry(name, method);
+		if (method == ZipEntry.STORED) {
+			final CRC32 crc = new CRC32();
+			crc.update(content, offset, length);
+			entry.setSize(length);
+			entry.setCompressedSize(length);
+			entry.setCrc(crc.getValue());
+		}
+
+		synchronized (zos) {
+			zos.putNextEntry(entry);
+			zos.write(content, offset, length);
+			zos.closeEntry();
+			entryCount++;
+		}
+	}
+
+	/**
+	 * Deflated entries are copied through, a stored entry is buffered first to
+	 * compute its checksum.
+	 */
+	public void addEntry(String name, InputStream is, int method) throws IOException {
+		Assert.notNull(is, "is parameter cannot be empty");
+
+		if (method == ZipEntry.STORED) {
+			final DocumentBuffer buffer = new DocumentBuffer();
+			is.transferTo(buffer);
+			addEntry(name, buffer, method);
+			return;
+		}
+
+		final ZipEntry entry = newEntry(name, method);
+		synchronized (zos) {
+			zos.putNextEntry(entry);
+			is.transferTo(zos);
+			zos.closeEntry();
+			entryCount++;
+		}
+	}
+
+	void addEntry(String name, DocumentBuffer document, int method) throws IOException {
+		Assert.hasText(name, "name parameter cannot be empty");
+
+		final ZipEntry entry = newEntry(name, method);
+		if (method == ZipEntry.STORED) {
+			entry.setSize(document.size());
+			entry.setCompressedSize(document.size());
+			entry.setCrc(document.checksum());
+		}
+
+		synchronized (zos) {
+			zos.putNextEntry(entry);
+			document.writeTo(zos);
+			zos.closeEntry();
+			entryCount++;
+		}
+	}
+
+	public int getEntryCount() {
+		synchronized (zos) {
+			return entryCount;
+		}
+	}
+
+	public void finish() throws IOException {
+		synchronized (zos) {
+			zos.finish();
+			zos.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// a stream which is left open is wrapped, closing only flushes it, the
+		// deflater is ended either way
+		synchronized (zos) {
+			zos.close();
+		}
+	}
+
+	private ZipEntry newEntry(String name, int method) {
+		Assert.isTrue(method == ZipEntry.STORED || method == ZipEntry.DEFLATED, "method must be STORED or DEFLATED");
+		final ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(method);
+		return entry;
+	}
+}
@@ -31,11 +31,16 @@ import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.util.StringUtils;
 
+import com.pleosoft.pleodox.boot.service.TemplateRegistry;
+
 public class DefaultStorageService implements StorageService {
 
 	private final Path temporaryLocation;
 	private final Path templateLocation;
 
+	private TemporaryStorageManager temporaryStorageManager;
+	private TemplateRegistry templateRegistry;
+
 	public DefaultStorageService(final Path temporaryLocation, final Path templateLocation) throws IOException {
 		this.temporaryLocation = temporaryLocation;
 		this.templateLocation = templateLocation;
@@ -50,9 +55,19 @@ public class DefaultStorageService implements StorageService {
 			throw new StorageException("Cannot store file with relative path outside current directory " + filename);
 		}
 
+		if (temporaryStorageManager != null) {
+			return temporaryStorageManager.resolve(filename);
+		}
 		return this.temporaryLocation.resolve(StringUtils.cleanPath(filename));
 	}
 
+	@Override
+	public void touchTemporary(Path path) {
+		if (temporaryStorageManager != null) {
+			temporaryStorageManager.touch(path);
+		}
+	}
+
 	public Path storeTemporary(InputStream inputStream, String filename) {
 		try {
 			final Path newPath = resolveTemporary(filename);
@@ -76,6 +91,10 @@ public class DefaultStorageService implements StorageService {
 	}
 
 	public List<Path> loadAllTemplates() {
+		if (templateRegistry != null) {
+			return templateRegistry.loadAllTemplates();
+		}
+
 		try {
 
 			final Path templatesPath = this.templateLocation;
@@ -94,6 +113,9 @@ public class DefaultStorageService implements StorageService {
 			// This is a security check
 			throw new StorageException("Cannot store file with relative path outside current directory " + filename);
 		}
+		if (temporaryStorageManager != null) {
+			return temporaryStorageManager.resolve(filename);
+		}
 		return temporaryLocation.resolve(StringUtils.cleanPath(filename));
 	}
 
@@ -137,4 +159,19 @@ public class DefaultStorageService implements StorageService {
 		}
 	}
 
+	/**
+	 * Hands the temporary files over to the manager, which shards, expires and
+	 * evicts them.
+	 */
+	public void setTemporaryStorageManager(TemporaryStorageManager temporaryStorageManager) {
+		this.temporaryStorageManager = temporaryStorageManager;
+	}
+
+	/**
+	 * Lists the templates from the registry instead of the template folder,
+	 * nested folders included.
+	 */
+	public void setTemplateRegistry(TemplateRegistry templateRegistry) {
+		this.templateRegistry = templateRegistry;
+	}
 }
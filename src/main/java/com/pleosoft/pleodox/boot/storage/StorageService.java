@@ -26,4 +26,10 @@ public interface StorageService {
 	public Path storeTemporary(InputStream inputStream, String filename);
 
 	public Path loadExistingTemplate(final String filename);
+
+	/**
+	 * Tells the storage that a temporary file is complete.
+	 */
+	public default void touchTemporary(Path path) {
+	}
 }
@@ -0,0 +1,338 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Keeps track of the temporary artifacts, the request folder or file named by
+ * the first segment of a temporary filename. The artifacts are sharded into
+ * two levels of hash prefix folders, {@code ab/cd/<artifact>}, so no folder
+ * grows beyond a few hundred entries. A background sweeper deletes the
+ * artifacts which were not accessed within the time to live and, above the
+ * byte quota, the least recently accessed ones.
+ */
+public class TemporaryStorageManager implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TemporaryStorageManager.class);
+
+	private final Path temporaryLocation;
+	private final Map<Path, Artifact> artifacts = new ConcurrentHashMap<>();
+
+	private final AtomicLong liveBytes = new AtomicLong();
+	private final AtomicLong fileCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	private Duration timeToLive = Duration.ofHours(1);
+	private Duration sweepInterval = Duration.ofMinutes(1);
+	private long maxBytes = -1;
+	private ScheduledExecutorService sweeper;
+
+	public TemporaryStorageManager(Path temporaryLocation) {
+		Assert.notNull(temporaryLocation, "temporaryLocation parameter cannot be empty");
+		this.temporaryLocation = temporaryLocation.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Resolves a temporary filename inside its shard and marks the artifact as
+	 * accessed.
+	 */
+	public Path resolve(String filename) {
+		Assert.hasText(filename, "filename parameter cannot be empty");
+
+		final String cleanPath = StringUtils.cleanPath(filename);
+		final int separator = cleanPath.indexOf('/');
+		final String artifactName = separator > -1 ? cleanPath.substring(0, separator) : cleanPath;
+
+		final Path shard = shard(artifactName);
+		final Path artifact = shard.resolve(artifactName);
+		artifacts.computeIfAbsent(artifact, Artifact::new).touch();
+		return shard.resolve(cleanPath);
+	}
+
+	/**
+	 * Marks the artifact holding {@code path} as accessed. Writers call it once
+	 * a file is complete, the sweeper then measures the artifact again.
+	 */
+	public void touch(Path path) {
+		Assert.notNull(path, "path parameter cannot be empty");
+
+		for (Path current = path.toAbsolutePath().normalize(); current != null
+				&& current.startsWith(temporaryLocation); current = current.getParent()) {
+			final Artifact artifact = artifacts.get(current);
+			if (artifact != null) {
+				artifact.touch();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adopts the artifacts left by a previous run, which then expire like the
+	 * others, and starts the sweeper.
+	 */
+	public synchronized void start() {
+		Assert.state(sweeper == null, "The temporary storage manager is already started");
+
+		adoptExisting();
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "pleodox-temporary-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long interval = sweepInterval.toMillis();
+		sweeper.scheduleWithFixedDelay(this::sweepQuietly, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Deletes the expired artifacts and evicts the least recently accessed
+	 * ones while the quota is exceeded. The size of an artifact is kept from
+	 * its last measurement, only the artifacts accessed within the last sweep
+	 * interval, which may still be written, are walked again. A file finished
+	 * later has to be reported with {@link #touch(Path)}.
+	 */
+	public void sweep() {
+		final long now = System.currentTimeMillis();
+		final long expiry = now - timeToLive.toMillis();
+		final long settled = sweepInterval.toMillis();
+
+		long bytes = 0;
+		long files = 0;
+		final List<Artifact> live = new ArrayList<>();
+		for (Artifact artifact : artifacts.values()) {
+			if (artifact.lastAccess < expiry) {
+				if (delete(artifact)) {
+					expiredCount.incrementAndGet();
+				}
+				continue;
+			}
+
+			if (artifact.measured <= artifact.lastAccess + settled && !artifact.measure(now)) {
+				// deleted by its owner
+				if (artifact.lastAccess < now - sweepInterval.toMillis()) {
+					artifacts.remove(artifact.path, artifact);
+				}
+				continue;
+			}
+			bytes += artifact.bytes;
+			files += artifact.files;
+			live.add(artifact);
+		}
+
+		if (maxBytes >= 0 && bytes > maxBytes) {
+			live.sort(Comparator.comparingLong(artifact -> artifact.lastAccess));
+			for (Artifact artifact : live) {
+				if (bytes <= maxBytes) {
+					break;
+				}
+				if (delete(artifact)) {
+					evictedCount.incrementAndGet();
+					bytes -= artifact.bytes;
+					files -= artifact.files;
+				}
+			}
+		}
+
+		liveBytes.set(bytes);
+		fileCount.set(files);
+	}
+
+	private void sweepQuietly() {
+		try {
+			sweep();
+		} catch (Exception e) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Sweeping the temporary storage failed", e);
+			}
+		}
+	}
+
+	private boolean delete(Artifact artifact) {
+		try {
+			FileSystemUtils.deleteRecursively(artifact.path);
+			artifacts.remove(artifact.path, artifact);
+			return true;
+		} catch (IOException e) {
+			if (LOG.isWarnEnabled()) {
+				LOG.warn("Could not delete temporary artifact " + artifact.path, e);
+			}
+			return false;
+		}
+	}
+
+	private void adoptExisting() {
+		if (!Files.isDirectory(temporaryLocation)) {
+			return;
+		}
+
+		try (Stream<Path> paths = Files.find(temporaryLocation, 3, (path, attributes) -> {
+			final Path relative = temporaryLocation.relativize(path);
+			return relative.getNameCount() == 3 && isShard(relative.getName(0).toString())
+					&& isShard(relative.getName(1).toString());
+		})) {
+			paths.forEach(path -> {
+				final Artifact artifact = artifacts.computeIfAbsent(path, Artifact::new);
+				try {
+					artifact.lastAccess = Files.getLastModifiedTime(path).toMillis();
+				} catch (IOException e) {
+					;
+				}
+			});
+		} catch (IOException e) {
+			throw new StorageException("Failed to read the temporary storage", e);
+		}
+
+		// whatever sits outside the shards was stored before the manager was in use
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(temporaryLocation,
+				path -> !isShard(path.getFileName().toString()))) {
+			for (Path path : entries) {
+				final Artifact artifact = artifacts.computeIfAbsent(path, Artifact::new);
+				artifact.lastAccess = Files.getLastModifiedTime(path).toMillis();
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to read the temporary storage", e);
+		}
+	}
+
+	private Path shard(String artifactName) {
+		final String hash = DigestUtils.md5DigestAsHex(artifactName.getBytes(StandardCharsets.UTF_8));
+		return temporaryLocation.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+	}
+
+	private static boolean isShard(String name) {
+		return name.length() == 2 && Character.digit(name.charAt(0), 16) > -1
+				&& Character.digit(name.charAt(1), 16) > -1;
+	}
+
+	public long getLiveBytes() {
+		return liveBytes.get();
+	}
+
+	public long getFileCount() {
+		return fileCount.get();
+	}
+
+	public int getArtifactCount() {
+		return artifacts.size();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	public void setTimeToLive(Duration timeToLive) {
+		Assert.notNull(timeToLive, "timeToLive parameter cannot be empty");
+		this.timeToLive = timeToLive;
+	}
+
+	public void setSweepInterval(Duration sweepInterval) {
+		Assert.notNull(sweepInterval, "sweepInterval parameter cannot be empty");
+		Assert.isTrue(!sweepInterval.isNegative() && !sweepInterval.isZero(),
+				"sweepInterval parameter must be positive");
+		this.sweepInterval = sweepInterval;
+	}
+
+	/**
+	 * @param maxBytes the quota of all temporary artifacts together, negative
+	 *                 for none
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	private static class Artifact {
+
+		private final Path path;
+		private volatile long lastAccess;
+		private volatile long bytes;
+		private volatile long files;
+		private volatile long measured;
+
+		Artifact(Path path) {
+			this.path = path;
+			this.lastAccess = System.currentTimeMillis();
+		}
+
+		void touch() {
+			lastAccess = System.currentTimeMillis();
+		}
+
+		boolean measure(long now) {
+			if (!Files.exists(path)) {
+				return false;
+			}
+
+			final long[] totals = new long[2];
+			try (Stream<Path> paths = Files.walk(path)) {
+				paths.forEach(file -> {
+					try {
+						final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+						if (attributes.isRegularFile()) {
+							totals[0] += attributes.size();
+							totals[1]++;
+						}
+					} catch (IOException e) {
+						// deleted while walking
+					}
+				});
+			} catch (IOException | RuntimeException e) {
+				return Files.exists(path);
+			}
+			bytes = totals[0];
+			files = totals[1];
+			measured = now;
+			return true;
+		}
+	}
+}
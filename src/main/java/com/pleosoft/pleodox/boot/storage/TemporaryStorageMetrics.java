@@ -0,0 +1,55 @@
+/**
+ * Copyright 2019 Pleo Soft d.o.o. (pleosoft.com)
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pleosoft.pleodox.boot.storage;
+
+import org.springframework.util.Assert;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Publishes the temporary storage counters to a Micrometer registry as
+ * {@code pleodox.temporary.bytes}, {@code pleodox.temporary.files},
+ * {@code pleodox.temporary.artifacts} and the
+ * {@code pleodox.temporary.deleted} counter tagged by reason.
+ * micrometer-core is an optional dependency and has to be on the classpath.
+ */
+public class TemporaryStorageMetrics implements MeterBinder {
+
+	private final TemporaryStorageManager manager;
+
+	public TemporaryStorageMetrics(TemporaryStorageManager manager) {
+		Assert.notNull(manager, "manager parameter cannot be empty");
+		this.manager = manager;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("pleodox.temporary.bytes", manager, TemporaryStorageManager::getLiveBytes).baseUnit("bytes")
+				.description("Bytes held by the temporary artifacts at the last sweep").register(registry);
+		Gauge.builder("pleodox.temporary.files", manager, TemporaryStorageManager::getFileCount)
+				.description("Files held by the temporary artifacts at the last sweep").register(registry);
+		Gauge.builder("pleodox.temporary.artifacts", manager, TemporaryStorageManager::getArtifactCount)
+				.description("Tracked temporary artifacts").register(registry);
+		FunctionCounter.builder("pleodox.temporary.deleted", manager, TemporaryStorageManager::getExpiredCount)
+				.tag("reason", "expired").register(registry);
+		FunctionCounter.builder("pleodox.temporary.deleted", manager, TemporaryStorageManager::getEvictedCount)
+				.tag("reason", "quota").register(registry);
+	}
+}